@@ -0,0 +1,976 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A streaming ARFF reader that works directly on the bytes of the file. The
+ * header is parsed into the usual Matrix meta-data; @DATA rows are tokenized
+ * in place, numbers are parsed straight out of the read buffer and nominal
+ * values are looked up by their bytes, so no Strings are created per cell.
+ * Rows may be dense or sparse ({index value, ...}, with the other values 0).
+ * A gzip-compressed file is inflated on a thread of its own while it is parsed.
+ */
+class ArffReader
+{
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // data sections smaller than this are not worth splitting across threads
+    private static final long MIN_CHUNK_SIZE = 4 << 20;
+
+    // exact powers of ten for the fast path of parseDouble
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private ReadableByteChannel m_channel;
+    private FileChannel m_file;     // set when reading from a file, for parallel reads
+    private long m_bufOffset;       // position in the input of m_buf[0]
+    private byte[] m_buf;
+    private int m_pos;
+    private int m_limit;
+    private boolean m_eof;
+
+    // bounds of the current (trimmed) line within m_buf
+    private int m_lineStart;
+    private int m_lineEnd;
+
+    // per-column lookup tables, null for continuous columns
+    private ValueTable[] m_tables;
+
+    public ArffReader(String filename) throws IOException
+    {
+        this(open(filename));
+    }
+
+    public ArffReader(ReadableByteChannel channel)
+    {
+        this(channel, BUFFER_SIZE);
+    }
+
+    private ArffReader(ReadableByteChannel channel, int bufferSize)
+    {
+        m_channel = channel;
+        if (channel instanceof FileChannel)
+        {
+            m_file = (FileChannel) channel;
+        }
+        m_buf = new byte[bufferSize];
+    }
+
+    // Creates a reader with no input, whose parseRow parses data lines of the
+    // specified attributes (e.g. lines sent to ScoringServer)
+    ArffReader(ArrayList<AttributeValues> attrValues)
+    {
+        m_tables = tables(attrValues);
+    }
+
+    // Opens the file, or a channel of its inflated bytes if it is gzip-compressed
+    private static ReadableByteChannel open(String filename) throws IOException
+    {
+        FileChannel file = new FileInputStream(filename).getChannel();
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        file.read(magic, 0);
+        if (magic.position() < 2 || (magic.get(0) & 0xff) != 0x1f || (magic.get(1) & 0xff) != 0x8b)
+        {
+            return file;
+        }
+        try
+        {
+            return new GzipChannel(new GZIPInputStream(Channels.newInputStream(file), BUFFER_SIZE));
+        }
+        catch (IOException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+    public void close() throws IOException
+    {
+        m_channel.close();
+    }
+
+    // Reads up to and including the @DATA line, filling in the attribute meta-data
+    public void readHeader(ArrayList<String> attrNames, ArrayList<AttributeValues> attrValues) throws Exception
+    {
+        while (nextLine())
+        {
+            if (m_lineStart == m_lineEnd || m_buf[m_lineStart] == '%')
+            {
+                continue;
+            }
+            String line = new String(m_buf, m_lineStart, m_lineEnd - m_lineStart, StandardCharsets.UTF_8);
+            int split = 0;
+            while (split < line.length() && line.charAt(split) > ' ')
+            {
+                split++;
+            }
+            String firstToken = line.substring(0, split).toUpperCase();
+            if (firstToken.equals("@ATTRIBUTE"))
+            {
+                AttributeValues values = new AttributeValues();
+                parseAttribute(line, line.substring(split).trim(), attrNames, values);
+                attrValues.add(values);
+            }
+            else if (firstToken.equals("@DATA"))
+            {
+                m_tables = tables(attrValues);
+                return;
+            }
+        }
+    }
+
+    private void parseAttribute(String line, String rest, ArrayList<String> attrNames, AttributeValues values) throws Exception
+    {
+        String attributeName;
+        if (rest.length() > 0 && (rest.charAt(0) == '\'' || rest.charAt(0) == '"'))
+        {
+            int close = rest.indexOf(rest.charAt(0), 1);
+            if (close == -1)
+            {
+                throw new Exception("Error parsing line: " + line + "\nunterminated attribute name");
+            }
+            attributeName = rest.substring(0, close + 1);
+            rest = rest.substring(close + 1).trim();
+        }
+        else
+        {
+            int end = 0;
+            while (end < rest.length() && rest.charAt(end) > ' ' && rest.charAt(end) != '{')
+            {
+                end++;
+            }
+            attributeName = rest.substring(0, end);
+            rest = rest.substring(end).trim();
+        }
+        attrNames.add(attributeName);
+
+        String type = rest.toUpperCase();
+        if (type.equals("REAL") || type.equals("CONTINUOUS") || type.equals("INTEGER") || type.equals("NUMERIC"))
+        {
+            return;
+        }
+        int open = rest.indexOf('{');
+        int close = rest.lastIndexOf('}');
+        if (open == -1 || close < open)
+        {
+            throw new Exception("Error parsing line: " + line + "\nunsupported attribute type");
+        }
+        int start = open + 1;
+        for (int i = start; i <= close; i++)
+        {
+            if (i == close || rest.charAt(i) == ',')
+            {
+                String value = rest.substring(start, i).trim();
+                if (value.length() > 0)
+                {
+                    values.add(value);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    // Returns true if the first row of the @DATA section is sparse. Call it after
+    // readHeader; it does not consume the row.
+    public boolean isSparse() throws Exception
+    {
+        while (nextLine())
+        {
+            if (m_lineStart == m_lineEnd || m_buf[m_lineStart] == '%')
+            {
+                continue;
+            }
+            m_pos = m_lineStart;
+            return m_buf[m_lineStart] == '{';
+        }
+        return false;
+    }
+
+    // Reads the rows of the @DATA section into the matrix
+    public void readData(Matrix m) throws Exception
+    {
+        int cols = m.cols();
+        double[] scratch = m.isColumnar() || m.isSparse() ? new double[cols] : null;
+        while (nextLine())
+        {
+            if (m_lineStart == m_lineEnd || m_buf[m_lineStart] == '%')
+            {
+                continue;
+            }
+            if (m.isSparse() && m_buf[m_lineStart] == '{')
+            {
+                m.addRow(parseSparseRow(m_buf, m_lineStart, m_lineEnd, cols));
+                continue;
+            }
+            // in row mode the row array becomes part of the matrix
+            double[] row = scratch != null ? scratch : new double[cols];
+            parseRow(m_buf, m_lineStart, m_lineEnd, row);
+            m.addRow(row);
+        }
+    }
+
+    // Parses the next row of the @DATA section into the array. Returns false,
+    // leaving the array untouched, when there are no more rows.
+    public boolean readRow(double[] row) throws Exception
+    {
+        while (nextLine())
+        {
+            if (m_lineStart == m_lineEnd || m_buf[m_lineStart] == '%')
+            {
+                continue;
+            }
+            parseRow(m_buf, m_lineStart, m_lineEnd, row);
+            return true;
+        }
+        return false;
+    }
+
+    // Reads the remaining rows into a list, one new array per row
+    private ArrayList<double[]> readRows(int cols) throws Exception
+    {
+        ArrayList<double[]> rows = new ArrayList<double[]>();
+        while (nextLine())
+        {
+            if (m_lineStart == m_lineEnd || m_buf[m_lineStart] == '%')
+            {
+                continue;
+            }
+            double[] row = new double[cols];
+            parseRow(m_buf, m_lineStart, m_lineEnd, row);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    // Reads the remaining rows into a list of sparse rows
+    private ArrayList<SparseRow> readSparseRows(int cols) throws Exception
+    {
+        ArrayList<SparseRow> rows = new ArrayList<SparseRow>();
+        double[] scratch = new double[cols];
+        while (nextLine())
+        {
+            if (m_lineStart == m_lineEnd || m_buf[m_lineStart] == '%')
+            {
+                continue;
+            }
+            if (m_buf[m_lineStart] == '{')
+            {
+                rows.add(parseSparseRow(m_buf, m_lineStart, m_lineEnd, cols));
+                continue;
+            }
+            parseRow(m_buf, m_lineStart, m_lineEnd, scratch);
+            rows.add(SparseRow.of(scratch));
+        }
+        return rows;
+    }
+
+    // Reads the rows of the @DATA section into the matrix using the pool. The rest of
+    // the file is split into byte ranges that start and end on line boundaries; each
+    // range is parsed by its own task against the shared header, and the rows are
+    // added to the matrix in file order, so the result is the same as readData.
+    // Falls back to readData when the input is not a file or is too small to split.
+    public void readDataParallel(Matrix m, ForkJoinPool pool) throws Exception
+    {
+        if (m_file == null)
+        {
+            readData(m);
+            return;
+        }
+        long start = m_bufOffset + m_pos;
+        long end = m_file.size();
+        int chunks = (int) Math.min((end - start) / MIN_CHUNK_SIZE, pool.getParallelism() * 4L);
+        if (chunks < 2)
+        {
+            readData(m);
+            return;
+        }
+
+        long[] bounds = new long[chunks + 1];
+        bounds[0] = start;
+        bounds[chunks] = end;
+        for (int i = 1; i < chunks; i++)
+        {
+            bounds[i] = lineStartAtOrAfter(start + (end - start) * i / chunks, end);
+        }
+
+        final int cols = m.cols();
+        final boolean sparse = m.isSparse();
+        ArrayList<ForkJoinTask<ArrayList<?>>> tasks = new ArrayList<ForkJoinTask<ArrayList<?>>>();
+        for (int i = 0; i < chunks; i++)
+        {
+            final ArffReader chunk = new ArffReader(new RangeChannel(m_file, bounds[i], bounds[i + 1]), (int) Math.min(BUFFER_SIZE, bounds[i + 1] - bounds[i] + 1));
+            chunk.m_tables = m_tables;
+            tasks.add(pool.submit(() -> sparse ? chunk.readSparseRows(cols) : chunk.readRows(cols)));
+        }
+        for (ForkJoinTask<ArrayList<?>> task : tasks)
+        {
+            ArrayList<?> rows;
+            try
+            {
+                rows = task.get();
+            }
+            catch (ExecutionException e)
+            {
+                // report a bad line the same way the sequential reader does
+                if (e.getCause() instanceof Exception)
+                {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+            for (Object row : rows)
+            {
+                if (sparse)
+                {
+                    m.addRow((SparseRow) row);
+                }
+                else
+                {
+                    m.addRow((double[]) row);
+                }
+            }
+        }
+        m_pos = m_limit;
+        m_eof = true;
+    }
+
+    // Returns the position of the first line that starts at or after pos
+    private long lineStartAtOrAfter(long pos, long end) throws IOException
+    {
+        ByteBuffer window = ByteBuffer.allocate(1 << 12);
+        long p = pos - 1;
+        while (p < end)
+        {
+            window.clear();
+            int n = m_file.read(window, p);
+            if (n <= 0)
+            {
+                break;
+            }
+            for (int i = 0; i < n; i++)
+            {
+                if (window.get(i) == '\n')
+                {
+                    return p + i + 1;
+                }
+            }
+            p += n;
+        }
+        return end;
+    }
+
+    private static ValueTable[] tables(ArrayList<AttributeValues> attrValues)
+    {
+        ValueTable[] tables = new ValueTable[attrValues.size()];
+        for (int i = 0; i < tables.length; i++)
+        {
+            if (attrValues.get(i).size() > 0)
+            {
+                tables[i] = new ValueTable(attrValues.get(i));
+            }
+        }
+        return tables;
+    }
+
+    // Parses one data line into row. Fields are separated by commas; commas inside
+    // quotes do not separate fields. Quotes are kept, as they are part of the value names.
+    // Returns the number of values on the line; values left off the end are zero. A
+    // sparse line gives every value, so it returns row.length.
+    int parseRow(byte[] buf, int start, int end, double[] row) throws Exception
+    {
+        if (buf[start] == '{')
+        {
+            parseSparseRow(buf, start, end, row.length).toDense(0, row);
+            return row.length;
+        }
+        int curPos = 0;
+        int i = start;
+        while (i <= end)
+        {
+            int fieldStart = i;
+            byte quote = 0;
+            while (i < end && (quote != 0 || buf[i] != ','))
+            {
+                byte b = buf[i];
+                if (quote == 0 && (b == '\'' || b == '"'))
+                {
+                    quote = b;
+                }
+                else if (b == quote)
+                {
+                    quote = 0;
+                }
+                i++;
+            }
+            int fieldEnd = i;
+            i++;
+            while (fieldStart < fieldEnd && buf[fieldStart] <= ' ')
+            {
+                fieldStart++;
+            }
+            while (fieldEnd > fieldStart && buf[fieldEnd - 1] <= ' ')
+            {
+                fieldEnd--;
+            }
+            if (fieldStart == fieldEnd)
+            {
+                continue;
+            }
+            if (curPos >= row.length)
+            {
+                throw lineError(buf, start, end, "too many values");
+            }
+            try
+            {
+                row[curPos] = parseValue(buf, fieldStart, fieldEnd, curPos);
+            }
+            catch (Exception e)
+            {
+                throw lineError(buf, start, end, e.toString());
+            }
+            curPos++;
+        }
+        // values left off the end of the line are zero
+        Arrays.fill(row, curPos, row.length, 0.0);
+        return curPos;
+    }
+
+    // Parses one sparse data line, {index value, index value, ...}, with the indexes
+    // counting attributes from 0. Attributes that are not listed are 0.
+    SparseRow parseSparseRow(byte[] buf, int start, int end, int cols) throws Exception
+    {
+        if (buf[end - 1] != '}')
+        {
+            throw lineError(buf, start, end, "missing '}'");
+        }
+        SparseRow row = new SparseRow();
+        int i = start + 1;
+        int close = end - 1;
+        while (i < close)
+        {
+            int entryStart = i;
+            byte quote = 0;
+            while (i < close && (quote != 0 || buf[i] != ','))
+            {
+                byte b = buf[i];
+                if (quote == 0 && (b == '\'' || b == '"'))
+                {
+                    quote = b;
+                }
+                else if (b == quote)
+                {
+                    quote = 0;
+                }
+                i++;
+            }
+            int entryEnd = i;
+            i++;
+            while (entryStart < entryEnd && buf[entryStart] <= ' ')
+            {
+                entryStart++;
+            }
+            if (entryStart == entryEnd)
+            {
+                continue;
+            }
+            int col = 0;
+            int p = entryStart;
+            while (p < entryEnd && buf[p] >= '0' && buf[p] <= '9')
+            {
+                col = col * 10 + (buf[p] - '0');
+                if (col >= cols)
+                {
+                    throw lineError(buf, start, end, "attribute index out of range");
+                }
+                p++;
+            }
+            if (p == entryStart || p == entryEnd || buf[p] > ' ')
+            {
+                throw lineError(buf, start, end, "expected an attribute index and a value");
+            }
+            int valueStart = p;
+            int valueEnd = entryEnd;
+            while (valueStart < valueEnd && buf[valueStart] <= ' ')
+            {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && buf[valueEnd - 1] <= ' ')
+            {
+                valueEnd--;
+            }
+            try
+            {
+                row.add(col, parseValue(buf, valueStart, valueEnd, col));
+            }
+            catch (Exception e)
+            {
+                throw lineError(buf, start, end, e.toString());
+            }
+        }
+        return row;
+    }
+
+    private double parseValue(byte[] buf, int start, int end, int col) throws Exception
+    {
+        //Missing instances appear in the dataset as a double defined as MISSING
+        if (end - start == 1 && buf[start] == '?')
+        {
+            return Matrix.MISSING;
+        }
+        ValueTable table = m_tables[col];
+        // Continuous values appear in the instance vector as they are
+        if (table == null)
+        {
+            return parseDouble(buf, start, end);
+        }
+        // Discrete values appear as an index to the "name"
+        // of that value in the "attributeValue" structure
+        int value = table.get(buf, start, end);
+        if (value == -1)
+        {
+            throw new Exception("Error parsing the value '" + new String(buf, start, end - start, StandardCharsets.UTF_8) + "'");
+        }
+        return value;
+    }
+
+    private Exception lineError(byte[] buf, int start, int end, String reason)
+    {
+        return new Exception("Error parsing line: " + new String(buf, start, end - start, StandardCharsets.UTF_8) + "\n" + reason);
+    }
+
+    // Parses a decimal number from the bytes in [start, end). Numbers with at most 15
+    // significant digits and a small exponent are converted exactly with a single
+    // multiply or divide; anything else falls back to Double.parseDouble, so the
+    // result always matches it.
+    static double parseDouble(byte[] buf, int start, int end)
+    {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+'))
+        {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        while (i < end && buf[i] >= '0' && buf[i] <= '9')
+        {
+            if (digits < 18)
+            {
+                mantissa = mantissa * 10 + (buf[i] - '0');
+                if (mantissa != 0)
+                {
+                    digits++;
+                }
+            }
+            else
+            {
+                exponent++;
+            }
+            anyDigits = true;
+            i++;
+        }
+        if (i < end && buf[i] == '.')
+        {
+            i++;
+            while (i < end && buf[i] >= '0' && buf[i] <= '9')
+            {
+                if (digits < 18)
+                {
+                    mantissa = mantissa * 10 + (buf[i] - '0');
+                    if (mantissa != 0)
+                    {
+                        digits++;
+                    }
+                    exponent--;
+                }
+                anyDigits = true;
+                i++;
+            }
+        }
+        if (anyDigits && i < end && (buf[i] == 'e' || buf[i] == 'E'))
+        {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buf[i] == '-' || buf[i] == '+'))
+            {
+                negativeExponent = buf[i] == '-';
+                i++;
+            }
+            int e = 0;
+            boolean anyExponentDigits = false;
+            while (i < end && buf[i] >= '0' && buf[i] <= '9')
+            {
+                if (e < 10000)
+                {
+                    e = e * 10 + (buf[i] - '0');
+                }
+                anyExponentDigits = true;
+                i++;
+            }
+            if (!anyExponentDigits)
+            {
+                anyDigits = false;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i == end && anyDigits && digits <= 15 && exponent >= -22 && exponent <= 22)
+        {
+            double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(new String(buf, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    // Advances to the next line, leaving its trimmed bounds in m_lineStart and m_lineEnd.
+    // Returns false at the end of the input.
+    private boolean nextLine() throws IOException
+    {
+        int scan = m_pos;
+        while (true)
+        {
+            while (scan < m_limit && m_buf[scan] != '\n')
+            {
+                scan++;
+            }
+            if (scan < m_limit || m_eof)
+            {
+                break;
+            }
+            // the line runs past the buffered bytes, so move it to the front and read more
+            int kept = m_limit - m_pos;
+            m_bufOffset += m_pos;
+            if (kept == m_buf.length)
+            {
+                byte[] bigger = new byte[m_buf.length * 2];
+                System.arraycopy(m_buf, m_pos, bigger, 0, kept);
+                m_buf = bigger;
+            }
+            else
+            {
+                System.arraycopy(m_buf, m_pos, m_buf, 0, kept);
+            }
+            scan -= m_pos;
+            m_pos = 0;
+            m_limit = kept;
+            fill();
+        }
+        if (m_pos == m_limit && m_eof)
+        {
+            return false;
+        }
+        int start = m_pos;
+        int end = scan;
+        m_pos = scan < m_limit ? scan + 1 : scan;
+        while (start < end && m_buf[start] <= ' ')
+        {
+            start++;
+        }
+        while (end > start && m_buf[end - 1] <= ' ')
+        {
+            end--;
+        }
+        m_lineStart = start;
+        m_lineEnd = end;
+        return true;
+    }
+
+    private void fill() throws IOException
+    {
+        ByteBuffer target = ByteBuffer.wrap(m_buf, m_limit, m_buf.length - m_limit);
+        while (target.hasRemaining())
+        {
+            int n = m_channel.read(target);
+            if (n < 0)
+            {
+                m_eof = true;
+                break;
+            }
+        }
+        m_limit = target.position();
+    }
+
+    /**
+     * Maps the UTF-8 bytes of a nominal value to its enum index using open addressing,
+     * so a value can be looked up without decoding it into a String.
+     */
+    static class ValueTable
+    {
+        private byte[][] m_keys;
+        private int[] m_values;
+        private int m_mask;
+
+        ValueTable(AttributeValues values)
+        {
+            int capacity = 4;
+            while (capacity < values.size() * 2)
+            {
+                capacity <<= 1;
+            }
+            m_keys = new byte[capacity][];
+            m_values = new int[capacity];
+            m_mask = capacity - 1;
+            for (int value = 0; value < values.size(); value++)
+            {
+                byte[] key = values.get(value).getBytes(StandardCharsets.UTF_8);
+                int slot = hash(key, 0, key.length) & m_mask;
+                while (m_keys[slot] != null)
+                {
+                    slot = (slot + 1) & m_mask;
+                }
+                m_keys[slot] = key;
+                m_values[slot] = value;
+            }
+        }
+
+        // Returns the enum index of the value in buf[start, end), or -1 if it is unknown
+        int get(byte[] buf, int start, int end)
+        {
+            int slot = hash(buf, start, end) & m_mask;
+            while (m_keys[slot] != null)
+            {
+                if (matches(m_keys[slot], buf, start, end))
+                {
+                    return m_values[slot];
+                }
+                slot = (slot + 1) & m_mask;
+            }
+            return -1;
+        }
+
+        private static boolean matches(byte[] key, byte[] buf, int start, int end)
+        {
+            if (key.length != end - start)
+            {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++)
+            {
+                if (key[i] != buf[start + i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(byte[] buf, int start, int end)
+        {
+            int h = 0x811c9dc5;
+            for (int i = start; i < end; i++)
+            {
+                h = (h ^ buf[i]) * 0x01000193;
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * The inflated bytes of a gzip stream. A daemon thread inflates the stream into
+     * a fixed set of buffers and hands them over through a bounded queue, so the
+     * parser works on one buffer while the next ones are inflated. Used buffers go
+     * back to the inflating thread through a second queue.
+     */
+    private static class GzipChannel implements ReadableByteChannel
+    {
+        private static final int BUFFERS = 4;
+
+        private static final Chunk END = new Chunk(0);
+
+        private InputStream m_in;
+        private ArrayBlockingQueue<Chunk> m_full = new ArrayBlockingQueue<Chunk>(BUFFERS + 1);
+        private ArrayBlockingQueue<Chunk> m_free = new ArrayBlockingQueue<Chunk>(BUFFERS);
+        private Thread m_thread;
+        private volatile IOException m_error;
+        private Chunk m_chunk;          // the buffer being read, or null
+        private int m_pos;
+        private boolean m_open = true;
+
+        private GzipChannel(InputStream in)
+        {
+            m_in = in;
+            for (int i = 0; i < BUFFERS; i++)
+            {
+                m_free.add(new Chunk(BUFFER_SIZE));
+            }
+            m_thread = new Thread(this::inflate, "ArffReader gzip");
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }
+
+        // Runs on the inflating thread until the end of the stream or close. However it
+        // stops, short of being closed, it ends with END, so read never waits forever;
+        // anything that stopped it is kept in m_error for read to throw.
+        private void inflate()
+        {
+            boolean closed = false;
+            try
+            {
+                while (true)
+                {
+                    Chunk chunk = m_free.take();
+                    chunk.m_length = 0;
+                    int n = 0;
+                    while (chunk.m_length < chunk.m_data.length && (n = m_in.read(chunk.m_data, chunk.m_length, chunk.m_data.length - chunk.m_length)) >= 0)
+                    {
+                        chunk.m_length += n;
+                    }
+                    if (chunk.m_length > 0)
+                    {
+                        m_full.put(chunk);
+                    }
+                    if (n < 0)
+                    {
+                        break;
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                m_error = e;
+            }
+            catch (InterruptedException e)
+            {
+                // closed while waiting for a buffer
+                closed = true;
+            }
+            catch (Throwable e)
+            {
+                m_error = new IOException(e.toString(), e);
+            }
+            finally
+            {
+                if (!closed)
+                {
+                    m_full.offer(END);
+                }
+            }
+        }
+
+        public int read(ByteBuffer dst) throws IOException
+        {
+            if (m_chunk == null || m_pos == m_chunk.m_length)
+            {
+                if (m_chunk != null && m_chunk != END)
+                {
+                    m_free.offer(m_chunk);
+                }
+                try
+                {
+                    m_chunk = m_full.take();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new InterruptedIOException();
+                }
+                m_pos = 0;
+                if (m_chunk == END)
+                {
+                    // leave END in place for any later reads
+                    m_full.offer(END);
+                    if (m_error != null)
+                    {
+                        throw new IOException("Error reading compressed data: " + m_error.getMessage(), m_error);
+                    }
+                    return -1;
+                }
+            }
+            int n = Math.min(dst.remaining(), m_chunk.m_length - m_pos);
+            dst.put(m_chunk.m_data, m_pos, n);
+            m_pos += n;
+            return n;
+        }
+
+        public boolean isOpen()
+        {
+            return m_open;
+        }
+
+        public void close() throws IOException
+        {
+            m_open = false;
+            m_thread.interrupt();
+            m_in.close();
+        }
+
+        private static class Chunk
+        {
+            private byte[] m_data;
+            private int m_length;
+
+            private Chunk(int size)
+            {
+                m_data = new byte[size];
+            }
+        }
+    }
+
+    /**
+     * Reads a fixed range of a file with positional reads, so several readers can
+     * share one FileChannel.
+     */
+    private static class RangeChannel implements ReadableByteChannel
+    {
+        private FileChannel m_file;
+        private long m_pos;
+        private long m_end;
+
+        private RangeChannel(FileChannel file, long start, long end)
+        {
+            m_file = file;
+            m_pos = start;
+            m_end = end;
+        }
+
+        public int read(ByteBuffer dst) throws IOException
+        {
+            if (m_pos >= m_end)
+            {
+                return -1;
+            }
+            int limit = dst.limit();
+            if (dst.remaining() > m_end - m_pos)
+            {
+                dst.limit(dst.position() + (int) (m_end - m_pos));
+            }
+            int n = m_file.read(dst, m_pos);
+            dst.limit(limit);
+            if (n > 0)
+            {
+                m_pos += n;
+            }
+            return n;
+        }
+
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        public void close()
+        {
+        }
+    }
+}
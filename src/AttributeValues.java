@@ -0,0 +1,95 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.util.Arrays;
+
+/**
+ * The values of a nominal attribute, in enum order. Names are kept in an array
+ * indexed by enum value, and an open-addressing table maps names back to their
+ * enum values. A continuous attribute has no values.
+ */
+class AttributeValues
+{
+    private String[] m_names;
+    private int m_size;
+    private int[] m_slots;          // enum value + 1 of the name in each slot, or 0 if empty
+    private int m_mask;
+
+    AttributeValues()
+    {
+        m_names = new String[4];
+        m_slots = new int[8];
+        m_mask = m_slots.length - 1;
+    }
+
+    // Returns the number of values (0 for a continuous attribute)
+    int size()
+    {
+        return m_size;
+    }
+
+    // Returns the name of the specified value
+    String get(int value)
+    {
+        if (value < 0 || value >= m_size)
+        {
+            return null;
+        }
+        return m_names[value];
+    }
+
+    // Returns the enum value of the specified name, or -1 if it is not one of the values
+    int indexOf(String name)
+    {
+        int slot = name.hashCode() & m_mask;
+        while (m_slots[slot] != 0)
+        {
+            int value = m_slots[slot] - 1;
+            if (m_names[value].equals(name))
+            {
+                return value;
+            }
+            slot = (slot + 1) & m_mask;
+        }
+        return -1;
+    }
+
+    // Adds a value with the specified name and returns its enum value
+    int add(String name)
+    {
+        if (m_size == m_names.length)
+        {
+            m_names = Arrays.copyOf(m_names, m_size * 2);
+        }
+        if ((m_size + 1) * 2 > m_slots.length)
+        {
+            rehash(m_slots.length * 2);
+        }
+        int value = m_size++;
+        m_names[value] = name;
+        insert(value);
+        return value;
+    }
+
+    private void rehash(int capacity)
+    {
+        m_slots = new int[capacity];
+        m_mask = capacity - 1;
+        for (int value = 0; value < m_size; value++)
+        {
+            insert(value);
+        }
+    }
+
+    private void insert(int value)
+    {
+        int slot = m_names[value].hashCode() & m_mask;
+        while (m_slots[slot] != 0)
+        {
+            slot = (slot + 1) & m_mask;
+        }
+        m_slots[slot] = value + 1;
+    }
+}
@@ -11,13 +11,21 @@ import java.util.ArrayList;
  * If the learning model you're using doesn't do as well as this one,
  * it's time to find a new learning model.
  */
-public class BaselineLearner extends SupervisedLearner
+public class BaselineLearner extends SupervisedLearner implements StreamLearner
 {
 
     double[] m_labels;
 
+    // Running totals for training from a stream
+    double[] m_sums;
+    int[] m_counts;
+    int[][] m_valueCounts;          // per nominal label, the count of each value
+
     public void train(Matrix features, Matrix labels) throws Exception
 	{
+        // keep the running totals too, for partialFit
+        startTraining(features, labels);
+        trainBatch(features, labels);
         m_labels = new double[labels.cols()];
         for (int i = 0; i < labels.cols(); i++)
         {
@@ -32,6 +40,111 @@ public class BaselineLearner extends SupervisedLearner
         }
     }
 
+    // Adds the new labels to the running totals and recomputes the mean or most
+    // common value of each label from them
+    @Override
+    public void partialFit(Matrix features, Matrix labels) throws Exception
+    {
+        if (m_sums == null)
+        {
+            startTraining(features, labels);
+        }
+        else if (labels.cols() != m_sums.length)
+        {
+            throw new Exception("Expected " + m_sums.length + " label columns");
+        }
+        trainBatch(features, labels);
+        endPass();
+    }
+
+    public void startTraining(Matrix features, Matrix labels) throws Exception
+    {
+        m_sums = new double[labels.cols()];
+        m_counts = new int[labels.cols()];
+        m_valueCounts = new int[labels.cols()][];
+        for (int i = 0; i < labels.cols(); i++)
+        {
+            m_valueCounts[i] = new int[labels.valueCount(i)];
+        }
+    }
+
+    public void trainBatch(Matrix features, Matrix labels) throws Exception
+    {
+        for (int i = 0; i < labels.cols(); i++)
+        {
+            for (int j = 0; j < labels.rows(); j++)
+            {
+                double v = labels.get(j, i);
+                if (v == Matrix.MISSING)
+                {
+                    continue;
+                }
+                if (m_valueCounts[i].length == 0)
+                {
+                    m_sums[i] += v;
+                    m_counts[i]++;
+                }
+                else
+                {
+                    m_valueCounts[i][(int) v]++;
+                }
+            }
+        }
+    }
+
+    // One pass is enough: the labels are the mean or the most common value seen
+    public boolean endPass() throws Exception
+    {
+        m_labels = new double[m_sums.length];
+        for (int i = 0; i < m_labels.length; i++)
+        {
+            if (m_valueCounts[i].length == 0)
+            {
+                m_labels[i] = m_sums[i] / m_counts[i]; // continuous
+            }
+            else
+            {
+                // nominal, with ties going to the lowest value
+                int maxCount = 0;
+                m_labels[i] = Matrix.MISSING;
+                for (int v = 0; v < m_valueCounts[i].length; v++)
+                {
+                    if (m_valueCounts[i][v] > maxCount)
+                    {
+                        maxCount = m_valueCounts[i][v];
+                        m_labels[i] = v;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // The running totals are saved with the labels, so a loaded model can be updated
+    // with partialFit
+    protected void writeModel(ModelFile.Output out) throws Exception
+    {
+        out.writeDoubles(m_labels);
+        out.writeDoubles(m_sums);
+        out.writeInts(m_counts);
+        for (int[] valueCounts : m_valueCounts)
+        {
+            out.writeInts(valueCounts);
+        }
+    }
+
+    protected void readModel(ModelFile.Input in) throws Exception
+    {
+        m_labels = in.readDoubles();
+        m_sums = in.readDoubles();
+        m_counts = in.readInts();
+        m_valueCounts = new int[m_counts.length][];
+        for (int i = 0; i < m_valueCounts.length; i++)
+        {
+            m_valueCounts[i] = in.readInts();
+        }
+    }
+
     public void predict(double[] features, double[] labels) throws Exception
     {
 		for (int i = 0; i < m_labels.length; i++)
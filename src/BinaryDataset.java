@@ -0,0 +1,226 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/**
+ * A compact binary dataset format that can be memory-mapped straight into a Matrix.
+ *
+ * Layout:
+ *   int    magic ('A' 'R' 'F' 'B')
+ *   int    version
+ *   int    rows
+ *   int    cols
+ *   long   offset of the data block
+ *   per attribute: UTF name, int value count, UTF value names (in enum order)
+ *   zero padding up to the data block
+ *   data block: cols * rows little-endian doubles, stored column by column
+ *
+ * The header is big-endian (DataOutputStream); the data block is little-endian so
+ * it can be viewed as a DoubleBuffer without byte swapping on common hardware. The
+ * data block is 8-byte aligned.
+ */
+public class BinaryDataset
+{
+    static final int MAGIC = 0x41524642;
+    static final int VERSION = 1;
+
+    // Returns true if the specified file starts with the binary dataset magic number
+    static boolean isBinary(String filename) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new FileInputStream(filename));
+        try
+        {
+            return in.available() >= 4 && in.readInt() == MAGIC;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // Writes the matrix to the specified file in the binary format
+    static void write(Matrix m, String filename) throws IOException
+    {
+        FileChannel channel = new FileOutputStream(filename).getChannel();
+        try
+        {
+            write(m, channel);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    // Writes the matrix to the channel in the binary format
+    static void write(Matrix m, WritableByteChannel channel) throws IOException
+    {
+        int rows = m.rows();
+        int cols = m.cols();
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(rows);
+        header.writeInt(cols);
+        header.writeLong(0); // data offset, filled in below
+        for (int i = 0; i < cols; i++)
+        {
+            header.writeUTF(m.attrName(i));
+            int vals = m.valueCount(i);
+            header.writeInt(vals);
+            for (int j = 0; j < vals; j++)
+            {
+                header.writeUTF(m.attrValue(i, j));
+            }
+        }
+        header.flush();
+        long dataOffset = (headerBytes.size() + 7) & ~7L;
+        byte[] headerArray = headerBytes.toByteArray();
+        ByteBuffer.wrap(headerArray, 16, 8).putLong(dataOffset);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(headerArray);
+        while (buffer.position() < dataOffset)
+        {
+            buffer.put((byte) 0);
+        }
+        for (int i = 0; i < cols; i++)
+        {
+            Column column = m.column(i);
+            for (int j = 0; j < rows; j++)
+            {
+                if (buffer.remaining() < 8)
+                {
+                    drain(buffer, channel);
+                }
+                buffer.putDouble(column.get(j));
+            }
+        }
+        drain(buffer, channel);
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Maps the specified file into the matrix. The matrix ends up in columnar mode with
+    // each column backed directly by the file, so processes loading the same file share
+    // its pages. Writes (e.g. normalize) copy the affected column onto the heap first.
+    static void load(Matrix m, String filename) throws Exception
+    {
+        load(m, filename, 0);
+    }
+
+    // Maps the binary dataset that starts at the specified position of the file into
+    // the matrix, as load does, and returns the position just past it. ModelFile keeps
+    // datasets inside its files this way.
+    static long load(Matrix m, String filename, long start) throws Exception
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        int rows;
+        int cols;
+        long dataOffset;
+        ArrayList<String> attrNames = new ArrayList<String>();
+        ArrayList<AttributeValues> attrValues = new ArrayList<AttributeValues>();
+        try
+        {
+            in.skipNBytes(start);
+            if (in.readInt() != MAGIC)
+            {
+                throw new Exception("Not a binary dataset: " + filename);
+            }
+            int version = in.readInt();
+            if (version != VERSION)
+            {
+                throw new Exception("Unsupported binary dataset version " + version + " in " + filename);
+            }
+            rows = in.readInt();
+            cols = in.readInt();
+            dataOffset = in.readLong();
+            for (int i = 0; i < cols; i++)
+            {
+                attrNames.add(in.readUTF());
+                AttributeValues values = new AttributeValues();
+                int vals = in.readInt();
+                for (int j = 0; j < vals; j++)
+                {
+                    values.add(in.readUTF());
+                }
+                attrValues.add(values);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        Column[] columns = new Column[cols];
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try
+        {
+            FileChannel channel = file.getChannel();
+            long columnBytes = (long) rows * 8;
+            if (channel.size() < start + dataOffset + columnBytes * cols)
+            {
+                throw new Exception("Truncated binary dataset: " + filename);
+            }
+            for (int i = 0; i < cols; i++)
+            {
+                ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start + dataOffset + i * columnBytes, columnBytes);
+                columns[i] = new Column.MappedColumn(region.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+            }
+        }
+        finally
+        {
+            // the mappings stay valid after the channel is closed
+            file.close();
+        }
+
+        m.setColumns(columns, rows);
+        m.m_attr_name = attrNames;
+        m.m_attr_values = attrValues;
+        return start + dataOffset + (long) rows * 8 * cols;
+    }
+
+    // Converts an ARFF file to the binary format
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 2)
+        {
+            System.out.println("Usage:");
+            System.out.println("BinaryDataset [ARFF_File] [Binary_File]");
+            System.exit(0);
+        }
+        double startTime = System.currentTimeMillis();
+        Matrix data = new Matrix();
+        data.setColumnar(true);
+        data.loadArff(args[0]);
+        write(data, args[1]);
+        double elapsedTime = System.currentTimeMillis() - startTime;
+        System.out.println("Wrote " + data.rows() + " instances, " + data.cols() + " attributes to " + args[1]);
+        System.out.println("Time to convert (in seconds): " + elapsedTime / 1000.0);
+    }
+}
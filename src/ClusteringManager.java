@@ -29,7 +29,7 @@ public class ClusteringManager
 
         // Load the ARFF file
         Matrix data = new Matrix();
-        data.loadArff(fileName);
+        data.load(fileName);
 
         if (normalize)
         {
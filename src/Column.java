@@ -0,0 +1,406 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * The values of a single attribute, stored contiguously. A Matrix in columnar
+ * mode keeps one of these per attribute instead of one double[] per row, so
+ * scans down a column walk a single primitive array.
+ */
+abstract class Column
+{
+    // Returns the number of values in this column
+    abstract int size();
+
+    // Returns the value at the specified row
+    abstract double get(int r);
+
+    // Sets the value at the specified row
+    abstract void set(int r, double v);
+
+    // Appends a value to the end of this column
+    abstract void add(double v);
+
+    // Returns true if the specified value can be stored in this column as is
+    boolean accepts(double v)
+    {
+        return true;
+    }
+
+    // Returns a copy of this column that can hold any value
+    Column widen()
+    {
+        int size = size();
+        double[] values = new double[Math.max(size, 16)];
+        for (int r = 0; r < size; r++)
+        {
+            values[r] = get(r);
+        }
+        return new DoubleColumn(values, size);
+    }
+
+    // Adds the distance contribution of each value in rows [from, to), compared with q,
+    // to sums[r - from]: 1 if either value is MISSING or if a nominal value differs,
+    // otherwise the squared difference
+    void addDistances(double q, boolean nominal, float[] sums, int from, int to)
+    {
+        for (int r = from; r < to; r++)
+        {
+            double v = get(r);
+            if (q == Matrix.MISSING || v == Matrix.MISSING)
+            {
+                sums[r - from] += 1;
+            }
+            else if (nominal)
+            {
+                if (v != q)
+                {
+                    sums[r - from] += 1;
+                }
+            }
+            else
+            {
+                float d = (float) (q - v);
+                sums[r - from] += d * d;
+            }
+        }
+    }
+
+    // Returns a zero-filled column suited to an attribute with the specified number
+    // of values: nominal attributes are stored as byte or short codes when they fit,
+    // and continuous ones as floats in single precision
+    static Column create(int valueCount, int size, boolean single)
+    {
+        if (valueCount > 0 && valueCount <= ByteColumn.MAX_CODE + 1)
+        {
+            return new ByteColumn(size);
+        }
+        if (valueCount > 0 && valueCount <= ShortColumn.MAX_CODE + 1)
+        {
+            return new ShortColumn(size);
+        }
+        if (valueCount == 0 && single)
+        {
+            return new FloatColumn(size);
+        }
+        return new DoubleColumn(size);
+    }
+
+    // Returns a column holding the first size values of the array, in the form create
+    // would choose if every value fits it, and as doubles otherwise
+    static Column of(double[] values, int size, int valueCount, boolean single)
+    {
+        Column column = create(valueCount, 0, single);
+        if (column instanceof DoubleColumn)
+        {
+            return new DoubleColumn(values, size);
+        }
+        for (int r = 0; r < size; r++)
+        {
+            if (!column.accepts(values[r]))
+            {
+                return new DoubleColumn(values, size);
+            }
+            column.add(values[r]);
+        }
+        return column;
+    }
+
+    // Returns true if v is MISSING or a whole number from 0 to max
+    static boolean isCode(double v, int max)
+    {
+        if (v == Matrix.MISSING)
+        {
+            return true;
+        }
+        int code = (int) v;
+        return code == v && code >= 0 && code <= max && (code != 0 || Double.doubleToRawLongBits(v) == 0);
+    }
+
+    /**
+     * A growable column of doubles.
+     */
+    static class DoubleColumn extends Column
+    {
+        double[] m_values;
+        int m_size;
+
+        DoubleColumn(int size)
+        {
+            m_values = new double[Math.max(size, 16)];
+            m_size = size;
+        }
+
+        DoubleColumn(double[] values, int size)
+        {
+            m_values = values;
+            m_size = size;
+        }
+
+        int size()
+        {
+            return m_size;
+        }
+
+        double get(int r)
+        {
+            return m_values[r];
+        }
+
+        void set(int r, double v)
+        {
+            m_values[r] = v;
+        }
+
+        void add(double v)
+        {
+            if (m_size == m_values.length)
+            {
+                m_values = Arrays.copyOf(m_values, m_values.length * 2);
+            }
+            m_values[m_size++] = v;
+        }
+    }
+
+    /**
+     * A growable column of nominal values stored as one byte each, with -1 for MISSING.
+     */
+    static class ByteColumn extends Column
+    {
+        static final int MAX_CODE = Byte.MAX_VALUE;
+
+        byte[] m_codes;
+        int m_size;
+
+        ByteColumn(int size)
+        {
+            m_codes = new byte[Math.max(size, 16)];
+            m_size = size;
+        }
+
+        int size()
+        {
+            return m_size;
+        }
+
+        double get(int r)
+        {
+            byte code = m_codes[r];
+            return code < 0 ? Matrix.MISSING : code;
+        }
+
+        void set(int r, double v)
+        {
+            m_codes[r] = v == Matrix.MISSING ? -1 : (byte) v;
+        }
+
+        void add(double v)
+        {
+            if (m_size == m_codes.length)
+            {
+                m_codes = Arrays.copyOf(m_codes, m_codes.length * 2);
+            }
+            m_codes[m_size++] = v == Matrix.MISSING ? -1 : (byte) v;
+        }
+
+        boolean accepts(double v)
+        {
+            return isCode(v, MAX_CODE);
+        }
+
+        void addDistances(double q, boolean nominal, float[] sums, int from, int to)
+        {
+            if (!nominal || !accepts(q))
+            {
+                super.addDistances(q, nominal, sums, from, to);
+                return;
+            }
+            // MISSING is -1, so it never matches a known value
+            int code = q == Matrix.MISSING ? -2 : (int) q;
+            for (int r = from; r < to; r++)
+            {
+                int c = m_codes[r];
+                if (c != code || c < 0)
+                {
+                    sums[r - from] += 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * A growable column of nominal values stored as two bytes each, with -1 for MISSING.
+     */
+    static class ShortColumn extends Column
+    {
+        static final int MAX_CODE = Short.MAX_VALUE;
+
+        short[] m_codes;
+        int m_size;
+
+        ShortColumn(int size)
+        {
+            m_codes = new short[Math.max(size, 16)];
+            m_size = size;
+        }
+
+        int size()
+        {
+            return m_size;
+        }
+
+        double get(int r)
+        {
+            short code = m_codes[r];
+            return code < 0 ? Matrix.MISSING : code;
+        }
+
+        void set(int r, double v)
+        {
+            m_codes[r] = v == Matrix.MISSING ? -1 : (short) v;
+        }
+
+        void add(double v)
+        {
+            if (m_size == m_codes.length)
+            {
+                m_codes = Arrays.copyOf(m_codes, m_codes.length * 2);
+            }
+            m_codes[m_size++] = v == Matrix.MISSING ? -1 : (short) v;
+        }
+
+        boolean accepts(double v)
+        {
+            return isCode(v, MAX_CODE);
+        }
+    }
+
+    /**
+     * A growable column of floats, for single precision storage of continuous values.
+     * MISSING is stored as positive infinity, so that value itself is not accepted.
+     */
+    static class FloatColumn extends Column
+    {
+        float[] m_values;
+        int m_size;
+
+        FloatColumn(int size)
+        {
+            m_values = new float[Math.max(size, 16)];
+            m_size = size;
+        }
+
+        int size()
+        {
+            return m_size;
+        }
+
+        double get(int r)
+        {
+            float v = m_values[r];
+            return v == Float.POSITIVE_INFINITY ? Matrix.MISSING : v;
+        }
+
+        void set(int r, double v)
+        {
+            m_values[r] = v == Matrix.MISSING ? Float.POSITIVE_INFINITY : (float) v;
+        }
+
+        void add(double v)
+        {
+            if (m_size == m_values.length)
+            {
+                m_values = Arrays.copyOf(m_values, m_values.length * 2);
+            }
+            m_values[m_size++] = v == Matrix.MISSING ? Float.POSITIVE_INFINITY : (float) v;
+        }
+
+        boolean accepts(double v)
+        {
+            return v == Matrix.MISSING || (float) v != Float.POSITIVE_INFINITY;
+        }
+
+        void addDistances(double q, boolean nominal, float[] sums, int from, int to)
+        {
+            if (nominal || q == Matrix.MISSING)
+            {
+                super.addDistances(q, nominal, sums, from, to);
+                return;
+            }
+            float fq = (float) q;
+            float[] values = m_values;
+            for (int r = from; r < to; r++)
+            {
+                float v = values[r];
+                if (v == Float.POSITIVE_INFINITY)
+                {
+                    sums[r - from] += 1;
+                }
+                else
+                {
+                    float d = fq - v;
+                    sums[r - from] += d * d;
+                }
+            }
+        }
+    }
+
+    /**
+     * A column backed by a buffer, typically a read-only region of a memory-mapped
+     * BinaryDataset file. The first write or append copies the column onto the
+     * heap, so the file itself is never modified.
+     */
+    static class MappedColumn extends Column
+    {
+        DoubleBuffer m_values;
+        int m_size;
+
+        MappedColumn(DoubleBuffer values)
+        {
+            m_values = values;
+            m_size = values.capacity();
+        }
+
+        int size()
+        {
+            return m_size;
+        }
+
+        double get(int r)
+        {
+            return m_values.get(r);
+        }
+
+        void set(int r, double v)
+        {
+            if (m_values.isReadOnly())
+            {
+                copy(m_values.capacity());
+            }
+            m_values.put(r, v);
+        }
+
+        void add(double v)
+        {
+            if (m_values.isReadOnly() || m_size == m_values.capacity())
+            {
+                copy(Math.max(16, m_size * 2));
+            }
+            m_values.put(m_size++, v);
+        }
+
+        // Moves the values to a writable heap buffer with the specified capacity
+        private void copy(int capacity)
+        {
+            DoubleBuffer copy = DoubleBuffer.allocate(capacity);
+            DoubleBuffer values = m_values.duplicate();
+            values.position(0).limit(m_size);
+            copy.put(values);
+            m_values = copy;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Reads an ARFF file or a BinaryDataset file in fixed-size batches of rows, so
+ * datasets larger than the heap can be trained on and evaluated with constant
+ * memory. Each batch is split into a feature matrix and a label matrix (the
+ * last columns of the file), and the same matrices and row arrays are reused
+ * for every batch. An ARFF file is parsed as it is read; a binary file is
+ * memory-mapped, so its pages stay outside the heap.
+ */
+public class DatasetStream implements Closeable
+{
+    private String m_filename;
+    private int m_batchSize;
+    private Matrix m_schema;            // the attributes of the file, with no rows
+    private ArffReader m_arff;          // the open ARFF file, or null
+    private Matrix m_binary;            // the mapped binary dataset, or null
+    private int m_nextRow;              // next row of m_binary to read
+
+    private double[] m_scratch;         // one row of the file
+    private double[][] m_featureRows;   // reused for every batch
+    private double[][] m_labelRows;
+    private Matrix m_features;
+    private Matrix m_labels;
+
+    // Opens the specified ARFF or binary dataset file. The last column is the label.
+    public DatasetStream(String filename, int batchSize) throws Exception
+    {
+        if (batchSize < 1)
+        {
+            throw new Exception("The batch size must be at least 1");
+        }
+        m_filename = filename;
+        m_batchSize = batchSize;
+        if (BinaryDataset.isBinary(filename))
+        {
+            m_binary = new Matrix();
+            m_binary.loadBinary(filename);
+            m_schema = new Matrix(m_binary, 0, 0, 0, m_binary.cols());
+            m_schema.setColumnar(false);
+        }
+        else
+        {
+            m_schema = new Matrix();
+            m_arff = openArff(m_schema);
+        }
+        m_scratch = new double[m_schema.cols()];
+        setLabelCount(1);
+    }
+
+    // Opens the ARFF file and reads its header into the matrix
+    private ArffReader openArff(Matrix schema) throws Exception
+    {
+        ArrayList<String> attrNames = new ArrayList<String>();
+        ArrayList<AttributeValues> attrValues = new ArrayList<AttributeValues>();
+        ArffReader reader = new ArffReader(m_filename);
+        try
+        {
+            reader.readHeader(attrNames, attrValues);
+        }
+        catch (Exception e)
+        {
+            reader.close();
+            throw e;
+        }
+        schema.m_attr_name = attrNames;
+        schema.m_attr_values = attrValues;
+        schema.clearRows();
+        return reader;
+    }
+
+    // Sets how many of the last columns are labels (0 for unsupervised learners)
+    public void setLabelCount(int labelCount) throws Exception
+    {
+        int cols = m_schema.cols();
+        if (labelCount < 0 || labelCount > cols)
+        {
+            throw new Exception("out of range");
+        }
+        int featureCols = cols - labelCount;
+        m_features = new Matrix(m_schema, 0, 0, 0, featureCols);
+        m_labels = new Matrix(m_schema, 0, featureCols, 0, labelCount);
+        m_featureRows = new double[m_batchSize][featureCols];
+        m_labelRows = new double[m_batchSize][labelCount];
+    }
+
+    // Returns an empty matrix with the attributes of the file
+    public Matrix schema()
+    {
+        return m_schema;
+    }
+
+    // Returns the features of the current batch
+    public Matrix features()
+    {
+        return m_features;
+    }
+
+    // Returns the labels of the current batch
+    public Matrix labels()
+    {
+        return m_labels;
+    }
+
+    // Reads the next batch into features() and labels(). Returns false at the end
+    // of the file, leaving both empty.
+    public boolean next() throws Exception
+    {
+        m_features.clearRows();
+        m_labels.clearRows();
+        int featureCols = m_features.cols();
+        int rows = 0;
+        while (rows < m_batchSize && readRow(m_scratch))
+        {
+            double[] features = m_featureRows[rows];
+            double[] labels = m_labelRows[rows];
+            System.arraycopy(m_scratch, 0, features, 0, featureCols);
+            System.arraycopy(m_scratch, featureCols, labels, 0, labels.length);
+            m_features.addRow(features);
+            m_labels.addRow(labels);
+            rows++;
+        }
+        return rows > 0;
+    }
+
+    private boolean readRow(double[] row) throws Exception
+    {
+        if (m_binary == null)
+        {
+            return m_arff.readRow(row);
+        }
+        if (m_nextRow == m_binary.rows())
+        {
+            return false;
+        }
+        for (int i = 0; i < row.length; i++)
+        {
+            row[i] = m_binary.get(m_nextRow, i);
+        }
+        m_nextRow++;
+        return true;
+    }
+
+    // Goes back to the first row of the file
+    public void rewind() throws Exception
+    {
+        if (m_binary != null)
+        {
+            m_nextRow = 0;
+            return;
+        }
+        m_arff.close();
+        m_arff = openArff(new Matrix());
+    }
+
+    public void close() throws IOException
+    {
+        if (m_arff != null)
+        {
+            m_arff.close();
+        }
+    }
+
+    // Trains the learner with as many passes over the file as it asks for
+    public void train(StreamLearner learner) throws Exception
+    {
+        m_features.clearRows();
+        m_labels.clearRows();
+        learner.startTraining(m_features, m_labels);
+        boolean another = true;
+        while (another)
+        {
+            rewind();
+            while (next())
+            {
+                learner.trainBatch(m_features, m_labels);
+            }
+            another = learner.endPass();
+        }
+    }
+}
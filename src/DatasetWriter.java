@@ -0,0 +1,348 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes matrices as ARFF, CSV or the BinaryDataset format through one large
+ * reused buffer. Numbers are formatted into the buffer with the same text as
+ * Double.toString but without creating a String per value, and nominal value
+ * names are encoded once per matrix. Rows can also be written one at a time
+ * (writeHeader, then writeRow), e.g. to stream out predictions.
+ */
+public class DatasetWriter implements Closeable, Flushable
+{
+    public enum Format
+    {
+        ARFF, CSV, BINARY;
+
+        // Picks the format from a file name: .csv, .bin, and ARFF for anything else
+        public static Format of(String filename)
+        {
+            String name = filename.toLowerCase();
+            if (name.endsWith(".csv"))
+            {
+                return CSV;
+            }
+            if (name.endsWith(".bin"))
+            {
+                return BINARY;
+            }
+            return ARFF;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // the longest number text (e.g. -2.2250738585072014E-308) fits in this many bytes
+    private static final int MAX_NUMBER = 32;
+
+    private static final byte[] MISSING = { '?' };
+    private static final byte[] ARFF_SEPARATOR = { ',', ' ' };
+    private static final byte[] CSV_SEPARATOR = { ',' };
+
+    private WritableByteChannel m_channel;
+    private byte[] m_buf = new byte[BUFFER_SIZE];
+    private int m_pos;
+    private StringBuilder m_number = new StringBuilder(MAX_NUMBER);
+
+    // UTF-8 names of the values of each nominal column of m_schema
+    private Matrix m_schema;
+    private byte[][][] m_names;
+
+    // non-zero values of one sparse row
+    private int[] m_indices;
+    private double[] m_values;
+
+    public DatasetWriter(OutputStream out)
+    {
+        this(Channels.newChannel(out));
+    }
+
+    public DatasetWriter(WritableByteChannel channel)
+    {
+        m_channel = channel;
+    }
+
+    // Writes the attributes and all the rows of the matrix. Sparse matrices are
+    // written as sparse ARFF rows.
+    public void write(Matrix m, Format format) throws IOException
+    {
+        if (format == Format.BINARY)
+        {
+            flush();
+            BinaryDataset.write(m, m_channel);
+            return;
+        }
+        writeHeader(m, format);
+        int rows = m.rows();
+        int cols = m.cols();
+        if (format == Format.ARFF && m.isSparse())
+        {
+            for (int r = 0; r < rows; r++)
+            {
+                writeSparseRow(m, r);
+            }
+            return;
+        }
+        byte[] separator = separator(format);
+        for (int r = 0; r < rows; r++)
+        {
+            for (int c = 0; c < cols; c++)
+            {
+                if (c > 0)
+                {
+                    writeBytes(separator);
+                }
+                writeValue(c, m.get(r, c));
+            }
+            writeByte('\n');
+        }
+    }
+
+    // Writes what comes before the rows: the ARFF header, or the CSV line of
+    // attribute names. The binary format cannot be written a row at a time.
+    public void writeHeader(Matrix schema, Format format) throws IOException
+    {
+        useSchema(schema);
+        if (format == Format.BINARY)
+        {
+            throw new IOException("The binary format can only be written a whole matrix at a time");
+        }
+        if (format == Format.CSV)
+        {
+            for (int c = 0; c < schema.cols(); c++)
+            {
+                if (c > 0)
+                {
+                    writeByte(',');
+                }
+                writeString(schema.attrName(c));
+            }
+            writeByte('\n');
+            return;
+        }
+        writeString("@RELATION Untitled\n");
+        for (int c = 0; c < schema.cols(); c++)
+        {
+            writeString("@ATTRIBUTE ");
+            writeString(schema.attrName(c));
+            int vals = schema.valueCount(c);
+            if (vals == 0)
+            {
+                writeString(" CONTINUOUS\n");
+                continue;
+            }
+            writeString(" {");
+            for (int v = 0; v < vals; v++)
+            {
+                if (v > 0)
+                {
+                    writeString(", ");
+                }
+                writeBytes(m_names[c][v]);
+            }
+            writeString("}\n");
+        }
+        writeString("@DATA\n");
+    }
+
+    // Writes one row with the attributes of the schema
+    public void writeRow(Matrix schema, double[] row, Format format) throws IOException
+    {
+        useSchema(schema);
+        byte[] separator = separator(format);
+        for (int c = 0; c < row.length; c++)
+        {
+            if (c > 0)
+            {
+                writeBytes(separator);
+            }
+            writeValue(c, row[c]);
+        }
+        writeByte('\n');
+    }
+
+    private void writeSparseRow(Matrix m, int r) throws IOException
+    {
+        int count = m.nonZeros(r, m_indices, m_values);
+        writeByte('{');
+        for (int k = 0; k < count; k++)
+        {
+            if (k > 0)
+            {
+                writeString(", ");
+            }
+            writeInt(m_indices[k]);
+            writeByte(' ');
+            writeValue(m_indices[k], m_values[k]);
+        }
+        writeString("}\n");
+    }
+
+    // Encodes the value names of the schema, unless they are already encoded
+    private void useSchema(Matrix schema)
+    {
+        if (schema == m_schema && m_names.length == schema.cols())
+        {
+            return;
+        }
+        int cols = schema.cols();
+        m_names = new byte[cols][][];
+        for (int c = 0; c < cols; c++)
+        {
+            int vals = schema.valueCount(c);
+            m_names[c] = new byte[vals][];
+            for (int v = 0; v < vals; v++)
+            {
+                m_names[c][v] = schema.attrValue(c, v).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        m_indices = new int[cols];
+        m_values = new double[cols];
+        m_schema = schema;
+    }
+
+    private static byte[] separator(Format format)
+    {
+        return format == Format.CSV ? CSV_SEPARATOR : ARFF_SEPARATOR;
+    }
+
+    // Writes a value of the specified column: ? if it is missing, the value name if
+    // the column is nominal, and the number otherwise
+    private void writeValue(int col, double v) throws IOException
+    {
+        if (v == Matrix.MISSING)
+        {
+            writeBytes(MISSING);
+            return;
+        }
+        byte[][] names = m_names[col];
+        if (names.length > 0 && v >= 0 && v < names.length && v == (int) v)
+        {
+            writeBytes(names[(int) v]);
+            return;
+        }
+        writeNumber(v);
+    }
+
+    // Writes the number as Double.toString would. Whole numbers below 10^7 are
+    // written digit by digit; anything else is appended to a reused StringBuilder,
+    // which formats it without creating a String.
+    private void writeNumber(double v) throws IOException
+    {
+        if (m_pos + MAX_NUMBER > m_buf.length)
+        {
+            flush();
+        }
+        if (v == (long) v && Math.abs(v) < 1e7)
+        {
+            if (v < 0 || (v == 0 && 1 / v < 0))
+            {
+                m_buf[m_pos++] = '-';
+            }
+            writeDigits(Math.abs((long) v));
+            m_buf[m_pos++] = '.';
+            m_buf[m_pos++] = '0';
+            return;
+        }
+        m_number.setLength(0);
+        m_number.append(v);
+        for (int i = 0; i < m_number.length(); i++)
+        {
+            m_buf[m_pos++] = (byte) m_number.charAt(i);
+        }
+    }
+
+    private void writeInt(int v) throws IOException
+    {
+        if (m_pos + MAX_NUMBER > m_buf.length)
+        {
+            flush();
+        }
+        writeDigits(v);
+    }
+
+    // Writes the digits of a non-negative number into the buffer, which has room
+    private void writeDigits(long v)
+    {
+        int digits = 1;
+        for (long rest = v / 10; rest > 0; rest /= 10)
+        {
+            digits++;
+        }
+        int end = m_pos + digits;
+        for (int i = end - 1; i >= m_pos; i--)
+        {
+            m_buf[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        m_pos = end;
+    }
+
+    private void writeString(String s) throws IOException
+    {
+        writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException
+    {
+        if (m_pos + bytes.length > m_buf.length)
+        {
+            flush();
+            if (bytes.length > m_buf.length)
+            {
+                drain(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, m_buf, m_pos, bytes.length);
+        m_pos += bytes.length;
+    }
+
+    private void writeByte(char b) throws IOException
+    {
+        if (m_pos == m_buf.length)
+        {
+            flush();
+        }
+        m_buf[m_pos++] = (byte) b;
+    }
+
+    // Writes out the buffered bytes
+    public void flush() throws IOException
+    {
+        drain(ByteBuffer.wrap(m_buf, 0, m_pos));
+        m_pos = 0;
+    }
+
+    private void drain(ByteBuffer bytes) throws IOException
+    {
+        while (bytes.hasRemaining())
+        {
+            m_channel.write(bytes);
+        }
+    }
+
+    // Writes out the buffered bytes and closes the channel
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            m_channel.close();
+        }
+    }
+}
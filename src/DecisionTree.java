@@ -1,3 +1,5 @@
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Random;
 
@@ -8,6 +10,7 @@ public class DecisionTree extends SupervisedLearner
     private HashSet<Node> prunableNodes;
     private boolean prune;
     private int deepest;
+    private double[] columnMaxes;
 
     public DecisionTree(Random rand)
     {
@@ -25,21 +28,23 @@ public class DecisionTree extends SupervisedLearner
             head = new Node(entrySet);
             head.address = "head";
             head.train();
+            columnMaxes = head.entrySet.getColumnMaxes();
         }
         else
         {
             // separate into test and training sets
             int trainingSetSize = (int) (features.rows() * .8);
             features.shuffle(rand, targets);
-            Matrix trainingFeatures = new Matrix(features, 0, 0, trainingSetSize, features.cols());
-            Matrix trainingTargets = new Matrix(targets, 0, 0, trainingSetSize, 1);
-            Matrix validationFeatures = new Matrix(features, trainingSetSize, 0, features.rows() - trainingSetSize, features.cols());
-            Matrix validationTargets = new Matrix(targets, trainingSetSize, 0, features.rows() - trainingSetSize, 1);
+            Matrix trainingFeatures = features.view(0, 0, trainingSetSize, features.cols());
+            Matrix trainingTargets = targets.view(0, 0, trainingSetSize, 1);
+            Matrix validationFeatures = features.view(trainingSetSize, 0, features.rows() - trainingSetSize, features.cols());
+            Matrix validationTargets = targets.view(trainingSetSize, 0, features.rows() - trainingSetSize, 1);
 
             EntrySet entrySet = new EntrySet(trainingFeatures, trainingTargets, true);
             head = new Node(entrySet);
             head.address = "head";
             head.train();
+            columnMaxes = head.entrySet.getColumnMaxes();
 
             // begin the super obnoxious process of error pruning
             double originalAccuracy = this.measureAccuracy(validationFeatures, validationTargets, null);
@@ -88,10 +93,14 @@ public class DecisionTree extends SupervisedLearner
         }
     }
 
+    // Reads only the trained tree, so it may be called from several threads at once.
+    // The features are clamped in a copy, and a value the tree has not seen sends the
+    // instance down a child picked with a Random seeded from the features, so the same
+    // features always get the same prediction.
     @Override
     public void predict(double[] features, double[] prediction) throws Exception
     {
-        double[] columnMaxes = head.entrySet.getColumnMaxes();
+        features = features.clone();
         for (int i = 0; i < features.length; i++)
         {
             if (features[i] > columnMaxes[i])
@@ -99,7 +108,22 @@ public class DecisionTree extends SupervisedLearner
                 features[i] = columnMaxes[i];
             }
         }
-        prediction[0] = head.predict(features);
+        prediction[0] = head.predict(features, new Random(Arrays.hashCode(features)));
+    }
+
+    // Writes the column maxima, then the nodes in depth-first order
+    @Override
+    protected void writeModel(ModelFile.Output out) throws Exception
+    {
+        out.writeDoubles(columnMaxes);
+        head.write(out);
+    }
+
+    @Override
+    protected void readModel(ModelFile.Input in) throws Exception
+    {
+        columnMaxes = in.readDoubles();
+        head = new Node(in);
     }
 
     public void setPrune(boolean prune)
@@ -141,12 +165,13 @@ public class DecisionTree extends SupervisedLearner
         public EntrySet(Matrix matrix, Matrix targets)
         {
             this.targets = targets;
-            this.setSize(matrix.rows(), matrix.cols());
-            for (int row = 0; row < matrix.rows(); row++)
+            // split evaluation scans one feature at a time, so keep the entries by column
+            this.setSize(matrix.rows(), matrix.cols(), true);
+            for (int col = 0; col < matrix.cols(); col++)
             {
-                for (int col = 0; col < matrix.cols(); col++)
+                double max = matrix.columnMax(col);
+                for (int row = 0; row < matrix.rows(); row++)
                 {
-                    double max = matrix.columnMax(col);
                     double value = matrix.get(row, col);
                     if (value > max)
                     {
@@ -195,10 +220,10 @@ public class DecisionTree extends SupervisedLearner
                         // find the new values
                         Matrix newFeatures = new Matrix();
                         newFeatures.setSize(unknownTargets.rows(), 1);
+                        double[] columnMaxes = tempHead.entrySet.getColumnMaxes();
                         for (int row = 0; row < unknownFeatures.rows(); row++)
                         {
                             double[] features = unknownFeatures.row(row);
-                            double[] columnMaxes = tempHead.entrySet.getColumnMaxes();
                             for (int i = 0; i < features.length; i++)
                             {
                                 if (features[i] > columnMaxes[i])
@@ -206,7 +231,7 @@ public class DecisionTree extends SupervisedLearner
                                     features[i] = columnMaxes[i];
                                 }
                             }
-                            newFeatures.set(row, 0, tempHead.predict(features));
+                            newFeatures.set(row, 0, tempHead.predict(features, rand));
                         }
                         Matrix results = recombine(trainingTargets, newFeatures);
                         result = replaceCol(col, result, results);
@@ -214,7 +239,7 @@ public class DecisionTree extends SupervisedLearner
                 }
             }
 
-            this.setSize(result.rows(), result.cols());
+            this.setSize(result.rows(), result.cols(), true);
             for (int row = 0; row < result.rows(); row++)
             {
                 for (int col = 0; col < result.cols(); col++)
@@ -230,16 +255,19 @@ public class DecisionTree extends SupervisedLearner
             double totalInfo = 0.0;
             int numberOfClasses = (int) targets.columnMax(0) + 1;
             int entries = this.rows();
-            for (int i = 0; i < numberOfClasses; i++)
+            double[] classCounts = new double[Math.max(numberOfClasses, 0)];
+            for (int j = 0; j < entries; j++)
             {
-                double count = 0;
-                for (int j = 0; j < entries; j++)
+                double target = targets.get(j, 0);
+                int i = (int) target;
+                if (i == target && i >= 0 && i < numberOfClasses)
                 {
-                    if (targets.row(j)[0] == i)
-                    {
-                        count += 1;
-                    }
+                    classCounts[i] += 1;
                 }
+            }
+            for (int i = 0; i < numberOfClasses; i++)
+            {
+                double count = classCounts[i];
                 if (count == 0)
                 {
                     continue;
@@ -262,12 +290,13 @@ public class DecisionTree extends SupervisedLearner
             for (int feature = 0; feature < this.cols(); feature++)
             {
                 int[] featureCount = this.featureCounts(feature);
+                int[][] featureClassCounts = this.featureClassCounts(feature, featureCount.length);
                 double featureInfo = 0.0;
                 for (int i = 0; i < featureCount.length; i++)
                 {
                     double featureClassInfo = 0.0;
                     int featureTotal = featureCount[i];
-                    int[] featureClassCount = this.featureClassCounts(feature, i);
+                    int[] featureClassCount = featureClassCounts[i];
                     for (int featureClassTotal : featureClassCount)
                     {
                         if (featureClassTotal == 0)
@@ -289,20 +318,23 @@ public class DecisionTree extends SupervisedLearner
             int[] counts = new int[(int) this.columnMax(col) + 1];
             for (int i = 0; i < this.rows(); i++)
             {
-                counts[(int) this.row(i)[col]]++;
+                counts[(int) this.get(i, col)]++;
             }
 
             return counts;
         }
 
-        private int[] featureClassCounts(int col, double nominalValue)
+        // Counts the classes of the entries with each value of the specified feature, in one pass
+        private int[][] featureClassCounts(int col, int values)
         {
-            int[] counts = new int[(int) this.targets.columnMax(0) + 1];
+            int[][] counts = new int[values][(int) this.targets.columnMax(0) + 1];
             for (int i = 0; i < this.rows(); i++)
             {
-                if (this.row(i)[col] == nominalValue)
+                double v = this.get(i, col);
+                int value = (int) v;
+                if (value == v && value >= 0 && value < values)
                 {
-                    counts[(int) targets.row(i)[0]]++;
+                    counts[value][(int) targets.get(i, 0)]++;
                 }
             }
 
@@ -311,9 +343,10 @@ public class DecisionTree extends SupervisedLearner
 
         public EntrySet[] splitOnFeature(int col)
         {
-            EntrySet[] results = new EntrySet[(int) this.columnMax(col) + 1];
+            double max = this.columnMax(col);
+            EntrySet[] results = new EntrySet[(int) max + 1];
             int[] featureCounts = this.featureCounts(col);
-            for (int featureIndex = 0; featureIndex < this.columnMax(col) + 1; featureIndex++)
+            for (int featureIndex = 0; featureIndex < max + 1; featureIndex++)
             {
                 Matrix newMatrix = new Matrix();
                 Matrix newTargets = new Matrix();
@@ -322,9 +355,9 @@ public class DecisionTree extends SupervisedLearner
                 int newRow = 0;
                 for (int row = 0; row < this.rows(); row++)
                 {
-                    if (this.row(row)[col] == featureIndex)
+                    if (this.get(row, col) == featureIndex)
                     {
-                        newTargets.set(newRow, 0, targets.row(row)[0]);
+                        newTargets.set(newRow, 0, targets.get(row, 0));
                         for (int column = 0; column < this.cols() - 1; column++)
                         {
                             if (column >= col)
@@ -358,15 +391,7 @@ public class DecisionTree extends SupervisedLearner
 
         public boolean colHasUnknown(int col, Matrix matrix)
         {
-            for (int i = 0; i < matrix.rows(); i++)
-            {
-                if (matrix.get(i, col) == Double.MAX_VALUE)
-                {
-                    return true;
-                }
-            }
-
-            return false;
+            return matrix.columnHasMissing(col);
         }
 
         public Matrix copy(Matrix original)
@@ -399,14 +424,8 @@ public class DecisionTree extends SupervisedLearner
 
         private Matrix[] divideByKnown(Matrix features, Matrix targets)
         {
-            int unknownCount = 0;
-            for (int i = 0; i < targets.rows(); i++)
-            {
-                if (targets.get(i, 0) == Double.MAX_VALUE)
-                {
-                    unknownCount++;
-                }
-            }
+            BitSet unknown = targets.missingRows(0);
+            int unknownCount = unknown.cardinality();
 
             Matrix trainingFeatures = new Matrix();
             Matrix trainingTargets = new Matrix();
@@ -421,7 +440,7 @@ public class DecisionTree extends SupervisedLearner
             for (int row = 0; row < targets.rows(); row++)
             {
                 // if this target is unknown
-                if (targets.get(row, 0) == Double.MAX_VALUE)
+                if (unknown.get(row))
                 {
                     unknownTargets.set(unknownIndex, 0, targets.get(row, 0));
                     for (int col = 0; col < features.cols(); col++)
@@ -491,12 +510,50 @@ public class DecisionTree extends SupervisedLearner
         private boolean isPruned = false;
         private Node parent = null;
         private int depth;
+        private double mostCommonTarget;    // the prediction when this is a leaf or is pruned to one
 
         public Node(EntrySet entrySet)
         {
             this.entrySet = entrySet;
             endNode = false;
             depth = 0;
+            mostCommonTarget = entrySet.targets.mostCommonValue(0);
+        }
+
+        // Reads a node and its children written by write. The node has no entries, so
+        // it can predict but not be trained or printed.
+        public Node(ModelFile.Input in)
+        {
+            endNode = in.readBoolean();
+            isPruned = in.readBoolean();
+            splitOnFeature = in.readInt();
+            mostCommonTarget = in.readDouble();
+            int childCount = in.readInt();
+            if (childCount >= 0)
+            {
+                children = new Node[childCount];
+                for (int i = 0; i < childCount; i++)
+                {
+                    children[i] = new Node(in);
+                    children[i].parent = this;
+                }
+            }
+        }
+
+        public void write(ModelFile.Output out)
+        {
+            out.writeBoolean(endNode);
+            out.writeBoolean(isPruned);
+            out.writeInt(splitOnFeature);
+            out.writeDouble(mostCommonTarget);
+            out.writeInt(children == null ? -1 : children.length);
+            if (children != null)
+            {
+                for (Node child : children)
+                {
+                    child.write(out);
+                }
+            }
         }
 
         public void train()
@@ -539,7 +596,8 @@ public class DecisionTree extends SupervisedLearner
             }
         }
 
-        public double predict(double[] features)
+        // random picks the child for a value the tree has not seen
+        public double predict(double[] features, Random random)
         {
             if (!endNode || isPruned)
             {
@@ -547,12 +605,12 @@ public class DecisionTree extends SupervisedLearner
                 features = removeFeature(features, splitOnFeature);
                 if (nominalValue >= children.length)
                 {
-                    nominalValue = Math.abs(rand.nextInt()) % children.length;
+                    nominalValue = Math.abs(random.nextInt()) % children.length;
                 }
-                return children[(int) nominalValue].predict(features);
+                return children[(int) nominalValue].predict(features, random);
             }
 
-            return entrySet.targets.mostCommonValue(0);
+            return mostCommonTarget;
         }
 
         public int nodeCount()
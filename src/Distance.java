@@ -0,0 +1,359 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+/**
+ * Squared distances from points to the instances of a data set, as kNN and k-means
+ * measure them. The data set is examined once, when the Distance is created, and an
+ * implementation specialized to it is picked, so the loops over every pair of
+ * instances do not test every attribute for being nominal or missing:
+ *
+ *   Continuous  no attribute is nominal and no value is missing: the squared
+ *               Euclidean distance
+ *   Nominal     every attribute is nominal and no value is missing: the Hamming
+ *               distance, over the value codes of the instances stored one byte each
+ *   Mixed       anything else: the HEOM-style distance of Kernels.mixedSquaredDistance
+ *
+ * Instances stored in single precision are summed a column at a time in floats
+ * (see Column.addDistances), and sparse instances over their non-zero values. A
+ * point that is missing a value (a query, or a centroid none of whose members had
+ * a value) is measured with the mixed distance, which is what the specialized
+ * ones compute wherever they apply.
+ */
+abstract class Distance
+{
+    protected Matrix m_data;
+    protected boolean[] m_nominal;
+
+    protected Distance(Matrix data)
+    {
+        m_data = data;
+        m_nominal = new boolean[data.cols()];
+        for (int i = 0; i < m_nominal.length; i++)
+        {
+            m_nominal[i] = data.valueCount(i) != 0;
+        }
+    }
+
+    // Picks the distance for the instances of the matrix, which should not change
+    // while it is in use
+    static Distance of(Matrix data)
+    {
+        if (data.isSinglePrecision())
+        {
+            return new SinglePrecision(data);
+        }
+        if (data.isSparse())
+        {
+            return new Sparse(data);
+        }
+        boolean continuous = true;
+        boolean nominal = true;
+        boolean complete = true;
+        for (int i = 0; i < data.cols(); i++)
+        {
+            int values = data.valueCount(i);
+            continuous = continuous && values == 0;
+            nominal = nominal && values > 0 && values <= Byte.MAX_VALUE + 1;
+            complete = complete && !data.columnHasMissing(i);
+        }
+        if (complete && continuous)
+        {
+            return new Continuous(data);
+        }
+        if (complete && nominal)
+        {
+            byte[][] codes = new byte[data.rows()][];
+            for (int r = 0; r < codes.length; r++)
+            {
+                codes[r] = Nominal.encode(data.row(r));
+                if (codes[r] == null)
+                {
+                    return new Mixed(data);
+                }
+            }
+            return new Nominal(data, codes);
+        }
+        return new Mixed(data);
+    }
+
+    // A name for the distance, for reports
+    abstract String name();
+
+    // Returns the squared distance from the point to the specified instance
+    double squared(double[] point, int row)
+    {
+        return Kernels.mixedSquaredDistance(point, m_data.row(row), m_nominal, point.length);
+    }
+
+    // Sets out[r] to the squared distance from the point to instance r, for each
+    // instance r in [from, to)
+    abstract void squaredTo(double[] point, int from, int to, double[] out);
+
+    static boolean hasMissing(double[] point)
+    {
+        for (double v : point)
+        {
+            if (v == Matrix.MISSING)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The HEOM-style distance, for data with missing values or with both nominal and
+     * continuous attributes.
+     */
+    static class Mixed extends Distance
+    {
+        Mixed(Matrix data)
+        {
+            super(data);
+        }
+
+        String name()
+        {
+            return "mixed";
+        }
+
+        void squaredTo(double[] point, int from, int to, double[] out)
+        {
+            double[] buffer = new double[m_data.cols()];
+            for (int r = from; r < to; r++)
+            {
+                out[r] = Kernels.mixedSquaredDistance(point, m_data.row(r, buffer), m_nominal, point.length);
+            }
+        }
+    }
+
+    /**
+     * The squared Euclidean distance, for data with only continuous attributes and no
+     * missing values.
+     */
+    static class Continuous extends Mixed
+    {
+        Continuous(Matrix data)
+        {
+            super(data);
+        }
+
+        String name()
+        {
+            return "continuous";
+        }
+
+        double squared(double[] point, int row)
+        {
+            if (hasMissing(point))
+            {
+                return super.squared(point, row);
+            }
+            return Kernels.squaredDistance(point, m_data.row(row), point.length);
+        }
+
+        void squaredTo(double[] point, int from, int to, double[] out)
+        {
+            if (hasMissing(point))
+            {
+                super.squaredTo(point, from, to, out);
+                return;
+            }
+            double[] buffer = new double[m_data.cols()];
+            for (int r = from; r < to; r++)
+            {
+                out[r] = Kernels.squaredDistance(point, m_data.row(r, buffer), point.length);
+            }
+        }
+    }
+
+    /**
+     * The Hamming distance, for data with only nominal attributes and no missing
+     * values. The instances are kept as one byte per value code.
+     */
+    static class Nominal extends Mixed
+    {
+        private byte[][] m_codes;
+
+        Nominal(Matrix data, byte[][] codes)
+        {
+            super(data);
+            m_codes = codes;
+        }
+
+        // Returns the value codes of the point, or null if a value is missing or
+        // does not fit in a byte
+        static byte[] encode(double[] point)
+        {
+            byte[] codes = new byte[point.length];
+            for (int i = 0; i < point.length; i++)
+            {
+                double v = point[i];
+                if (v < 0 || v > Byte.MAX_VALUE || v != (int) v)
+                {
+                    return null;
+                }
+                codes[i] = (byte) v;
+            }
+            return codes;
+        }
+
+        static int hamming(byte[] a, byte[] b)
+        {
+            int count = 0;
+            for (int i = 0; i < a.length; i++)
+            {
+                if (a[i] != b[i])
+                {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        String name()
+        {
+            return "nominal";
+        }
+
+        double squared(double[] point, int row)
+        {
+            byte[] codes = encode(point);
+            if (codes == null)
+            {
+                return super.squared(point, row);
+            }
+            return hamming(codes, m_codes[row]);
+        }
+
+        void squaredTo(double[] point, int from, int to, double[] out)
+        {
+            byte[] codes = encode(point);
+            if (codes == null)
+            {
+                super.squaredTo(point, from, to, out);
+                return;
+            }
+            for (int r = from; r < to; r++)
+            {
+                out[r] = hamming(codes, m_codes[r]);
+            }
+        }
+    }
+
+    /**
+     * The HEOM-style distance summed a column at a time in single precision, for data
+     * stored in single precision.
+     */
+    static class SinglePrecision extends Distance
+    {
+        SinglePrecision(Matrix data)
+        {
+            super(data);
+        }
+
+        String name()
+        {
+            return "single precision";
+        }
+
+        // summed with the same float kernels as squaredTo, so kNN weights its votes
+        // with the distances it picked the neighbours by
+        double squared(double[] point, int row)
+        {
+            float[] sums = new float[1];
+            for (int i = 0; i < m_nominal.length; i++)
+            {
+                m_data.column(i).addDistances(point[i], m_nominal[i], sums, row, row + 1);
+            }
+            return sums[0];
+        }
+
+        void squaredTo(double[] point, int from, int to, double[] out)
+        {
+            float[] sums = new float[to - from];
+            for (int i = 0; i < m_nominal.length; i++)
+            {
+                m_data.column(i).addDistances(point[i], m_nominal[i], sums, from, to);
+            }
+            for (int r = from; r < to; r++)
+            {
+                out[r] = sums[r - from];
+            }
+        }
+    }
+
+    /**
+     * The HEOM-style distance over the non-zero values, for data stored sparsely.
+     * Columns where both instances are zero add nothing, so only the columns where
+     * either one has a value are visited.
+     */
+    static class Sparse extends Distance
+    {
+        Sparse(Matrix data)
+        {
+            super(data);
+        }
+
+        String name()
+        {
+            return "sparse";
+        }
+
+        void squaredTo(double[] point, int from, int to, double[] out)
+        {
+            int cols = m_nominal.length;
+            int[] pointIndices = new int[cols];
+            double[] pointValues = new double[cols];
+            int pointCount = 0;
+            for (int i = 0; i < cols; i++)
+            {
+                if (point[i] != 0)
+                {
+                    pointIndices[pointCount] = i;
+                    pointValues[pointCount] = point[i];
+                    pointCount++;
+                }
+            }
+            int[] indices = new int[cols];
+            double[] values = new double[cols];
+            for (int r = from; r < to; r++)
+            {
+                int count = m_data.nonZeros(r, indices, values);
+                out[r] = squared(pointIndices, pointValues, pointCount, indices, values, count);
+            }
+        }
+
+        // the two instances are given by their non-zero values, in column order
+        private double squared(int[] oneIndices, double[] oneValues, int oneCount, int[] twoIndices, double[] twoValues, int twoCount)
+        {
+            double sum = 0;
+            int a = 0;
+            int b = 0;
+            while (a < oneCount || b < twoCount)
+            {
+                int i;
+                double one = 0;
+                double two = 0;
+                if (b == twoCount || (a < oneCount && oneIndices[a] <= twoIndices[b]))
+                {
+                    i = oneIndices[a];
+                    one = oneValues[a++];
+                    if (b < twoCount && twoIndices[b] == i)
+                    {
+                        two = twoValues[b++];
+                    }
+                }
+                else
+                {
+                    i = twoIndices[b];
+                    two = twoValues[b++];
+                }
+                sum += Kernels.mixedDifference(one, two, m_nominal[i]);
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.util.Random;
+
+/**
+ * Compares Hogwild training of the Perceptron with sequential training on ARFF
+ * files with a binary label. Each file is shuffled and split 70/30, as
+ * MLSystemManager's random evaluation splits it, and the rows are stored sparsely.
+ * For 1 (sequential), 2, 4 and 8 threads it trains RUNS times, each run from the
+ * same split in the same order, and reports the mean training time, the rows
+ * presented per second, the speedup and scaling efficiency (speedup per thread) in
+ * rows per second against sequential training, the mean epochs, and the mean test
+ * set accuracy. Hogwild results depend on how the threads interleave, which is
+ * why the runs are averaged.
+ */
+public class HogwildBenchmark
+{
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length == 0)
+        {
+            System.out.println("Usage:");
+            System.out.println("HogwildBenchmark [ARFF_File]...");
+            System.exit(0);
+        }
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+        for (String filename : args)
+        {
+            Matrix data = new Matrix();
+            data.setSparse(true);
+            data.load(filename);
+            int label = data.cols() - 1;
+            System.out.println();
+            if (data.valueCount(label) != 2)
+            {
+                System.out.println(filename + ": skipped, the label is not binary");
+                continue;
+            }
+            data.shuffle(new Random(1234));
+            int trainSize = (int) (0.7 * data.rows());
+            Matrix testFeatures = data.view(trainSize, 0, data.rows() - trainSize, label);
+            Matrix testLabels = data.view(trainSize, label, data.rows() - trainSize, 1);
+            System.out.println(filename + ": " + trainSize + " training rows, " + testFeatures.rows() + " test rows, " + label + " features");
+
+            report(data, trainSize, testFeatures, testLabels);
+        }
+    }
+
+    private static void report(Matrix data, int trainSize, Matrix testFeatures, Matrix testLabels) throws Exception
+    {
+        int label = data.cols() - 1;
+        double sequentialRate = 0;
+        for (int threads : THREADS)
+        {
+            Perceptron[] learners = new Perceptron[RUNS];
+            Latencies times = Latencies.time(RUNS, RUNS, run ->
+            {
+                // train shuffles the rows of the views it is given
+                Matrix trainFeatures = data.view(0, 0, trainSize, label);
+                Matrix trainLabels = data.view(0, label, trainSize, 1);
+                learners[run] = new Perceptron(new Random(run));
+                learners[run].setVerbose(false);
+                learners[run].setThreads(threads);
+                learners[run].train(trainFeatures, trainLabels);
+            });
+            double accuracySum = 0;
+            int epochSum = 0;
+            for (Perceptron learner : learners)
+            {
+                epochSum += learner.epochs();
+                accuracySum += learner.measureAccuracy(testFeatures, testLabels, null);
+            }
+            double rate = (double) epochSum * trainSize / (times.mean() * RUNS / 1000);
+            if (threads == 1)
+            {
+                sequentialRate = rate;
+            }
+            double speedup = rate / sequentialRate;
+            System.out.println(String.format("  %d thread%s  %8.2f ms  %10.0f rows/s  speedup %5.2f  efficiency %5.2f  epochs %5.1f  test accuracy %.4f",
+                threads, threads == 1 ? " " : "s", times.mean(), rate, speedup, speedup / threads, (double) epochSum / RUNS, accuracySum / RUNS));
+        }
+    }
+}
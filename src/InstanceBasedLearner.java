@@ -7,9 +7,13 @@ public class InstanceBasedLearner extends SupervisedLearner
     private int kNeighbors;
     private NeighborSet neighbors;
     private boolean regression;
-    private boolean[] nominals;
+    private Distance distance;
     private Set<Integer> ignore;
 
+    // rows per block in predictRange
+    private static final int QUERY_BLOCK = 32;
+    private static final int STORED_BLOCK = 512;
+
     private Writer fileWriter;
 
     public InstanceBasedLearner(Random rand)
@@ -24,11 +28,7 @@ public class InstanceBasedLearner extends SupervisedLearner
     public void train(Matrix features, Matrix labels) throws Exception
     {
         neighbors = new NeighborSet(features, labels);
-        nominals = new boolean[neighbors.cols()];
-        for (int i = 0; i < neighbors.cols(); i++)
-        {
-            nominals[i] = neighbors.valueCount(i) != 0;
-        }
+        distance = Distance.of(neighbors);
         neighbors.buildDistanceTable();
 
 //        double threshold = neighbors.averageDistance();
@@ -49,20 +49,103 @@ public class InstanceBasedLearner extends SupervisedLearner
     public void predict(double[] features, double[] labels) throws Exception
     {
         Directory directory = new Directory(kNeighbors);
+        double[] squaredDistances = new double[neighbors.rows()];
+        distance.squaredTo(features, 0, squaredDistances.length, squaredDistances);
         for (int i = 0; i < neighbors.rows(); i++)
         {
             if (ignore.contains(i))
             {
                 continue;
             }
-            double distance = distance(features, neighbors.row(i));
-            directory.add(i, distance);
+            directory.add(i, Math.sqrt(squaredDistances[i]));
         }
         double vote = neighbors.vote(directory.nn(), features);
 
         labels[0] = vote;
     }
 
+    // Predicts QUERY_BLOCK rows at a time, measuring them against STORED_BLOCK stored
+    // instances at a time, so each block of stored instances is read from memory
+    // once per block of queries rather than once per query
+    @Override
+    protected void predictRange(Matrix features, int start, int end, double[] out) throws Exception
+    {
+        int rows = neighbors.rows();
+        double[] squaredDistances = new double[rows];
+        for (int blockStart = start; blockStart < end; blockStart += QUERY_BLOCK)
+        {
+            int blockEnd = Math.min(end, blockStart + QUERY_BLOCK);
+            double[][] queries = new double[blockEnd - blockStart][];
+            Directory[] directories = new Directory[queries.length];
+            for (int q = 0; q < queries.length; q++)
+            {
+                queries[q] = features.row(blockStart + q);
+                directories[q] = new Directory(kNeighbors);
+            }
+            for (int storedStart = 0; storedStart < rows; storedStart += STORED_BLOCK)
+            {
+                int storedEnd = Math.min(rows, storedStart + STORED_BLOCK);
+                for (int q = 0; q < queries.length; q++)
+                {
+                    distance.squaredTo(queries[q], storedStart, storedEnd, squaredDistances);
+                    for (int i = storedStart; i < storedEnd; i++)
+                    {
+                        if (!ignore.contains(i))
+                        {
+                            directories[q].add(i, Math.sqrt(squaredDistances[i]));
+                        }
+                    }
+                }
+            }
+            for (int q = 0; q < queries.length; q++)
+            {
+                out[blockStart + q] = neighbors.vote(directories[q].nn(), queries[q]);
+            }
+        }
+    }
+
+    // Writes the settings and the ignored instances, then the stored instances and
+    // their targets as datasets
+    @Override
+    protected void writeModel(ModelFile.Output out) throws Exception
+    {
+        out.writeInt(kNeighbors);
+        out.writeBoolean(regression);
+        out.writeBoolean(neighbors.isSinglePrecision());
+        out.writeBoolean(neighbors.isSparse());
+        int[] ignored = new int[ignore.size()];
+        int i = 0;
+        for (int row : new TreeSet<>(ignore))
+        {
+            ignored[i++] = row;
+        }
+        out.writeInts(ignored);
+        out.writeDataset(neighbors);
+        out.writeDataset(neighbors.targets);
+    }
+
+    // The stored instances are mapped from the model file, then laid out as train
+    // lays them out
+    @Override
+    protected void readModel(ModelFile.Input in) throws Exception
+    {
+        kNeighbors = in.readInt();
+        regression = in.readBoolean();
+        boolean single = in.readBoolean();
+        boolean sparse = in.readBoolean();
+        ignore = new HashSet<>();
+        for (int row : in.readInts())
+        {
+            ignore.add(row);
+        }
+        Matrix features = in.readDataset();
+        Matrix targets = in.readDataset();
+        features.setSinglePrecision(single);
+        neighbors = new NeighborSet(features, targets);
+        neighbors.setSparse(sparse);
+        distance = Distance.of(neighbors);
+    }
+
     public int getkNeighbors()
     {
         return kNeighbors;
@@ -83,30 +166,6 @@ public class InstanceBasedLearner extends SupervisedLearner
         this.regression = regression;
     }
 
-    private double distance(double[] one, double[] two)
-    {
-        double sum = 0;
-        for (int i = 0; i < one.length; i++)
-        {
-            if (one[i] == Double.MAX_VALUE || two[i] == Double.MAX_VALUE)
-            {
-                sum += 1;
-                continue;
-            }
-            if (nominals[i])
-            {
-                if (one[i] != two[i])
-                {
-                    sum += 1;
-                }
-                continue;
-            }
-            sum += Math.pow(one[i] - two[i], 2);
-        }
-
-        return Math.sqrt(sum);
-    }
-
     private class NeighborSet extends Matrix
     {
         private Matrix targets;
@@ -115,6 +174,12 @@ public class InstanceBasedLearner extends SupervisedLearner
         private NeighborSet(Matrix features, Matrix targets)
         {
             super(features, 0, 0, features.rows(), features.cols());
+            // every prediction walks the stored instances row by row, unless they are
+            // in single precision, where Distance walks the float columns instead
+            if (!isSinglePrecision())
+            {
+                setColumnar(false);
+            }
             this.targets = targets;
         }
 
@@ -126,17 +191,17 @@ public class InstanceBasedLearner extends SupervisedLearner
             for (Integer neighbor : neighbors)
             {
                 double vote = targets.row(neighbor)[0];
-                regressionVote += vote * 1.0 / (Math.pow(distance(subject, this.row(neighbor)), 2));
-                weightsSum += 1.0 / (Math.pow(distance(subject, this.row(neighbor)), 2));
+                regressionVote += vote * 1.0 / distance.squared(subject, neighbor);
+                weightsSum += 1.0 / distance.squared(subject, neighbor);
                 if (votes.containsKey(vote))
                 {
 //                    votes.replace(vote, (votes.get(vote) + 1.0));
-                    votes.replace(vote, (votes.get(vote) + (1.0 / (Math.pow(distance(subject, this.row(neighbor)), 2)))));
+                    votes.replace(vote, (votes.get(vote) + (1.0 / distance.squared(subject, neighbor))));
                 }
                 else
                 {
 //                    votes.put(vote, 1.0);
-                    votes.put(vote, (1.0 / (Math.pow(distance(subject, this.row(neighbor)), 2))));
+                    votes.put(vote, (1.0 / distance.squared(subject, neighbor)));
                 }
             }
 //            regressionVote = regressionVote / neighbors.size();
@@ -167,19 +232,13 @@ public class InstanceBasedLearner extends SupervisedLearner
         private void buildDistanceTable()
         {
             distanceTable = new double[this.rows()][this.rows()];
+            double[] squaredDistances = new double[this.rows()];
             for (int i = 0; i < this.rows(); i++)
             {
-                for (int j = i; j < this.rows(); j++)
+                distance.squaredTo(this.row(i), i + 1, this.rows(), squaredDistances);
+                for (int j = i + 1; j < this.rows(); j++)
                 {
-                    double distance;
-                    if (i == j)
-                    {
-                        distance = 0.0;
-                    }
-                    else
-                    {
-                        distance = distance(this.row(i), this.row(j));
-                    }
+                    double distance = Math.sqrt(squaredDistances[j]);
                     distanceTable[i][j] = distance;
                     distanceTable[j][i] = distance;
                 }
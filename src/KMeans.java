@@ -3,16 +3,26 @@ import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.*;
 
-public class KMeans
+public class KMeans implements StreamLearner
 {
     private int k = 4;
     private Random rand;
     private boolean[] nominals;
+    private Distance distance;
     private DecimalFormat rounder;
     private Writer fileWriter;
 
     private CentroidMap map;
 
+    // Lloyd's algorithm over a stream: each pass assigns every instance to its
+    // nearest centroid and totals the members, then endPass moves the centroids
+    private double[][] streamCentroids;
+    private double[][] streamSums;          // per centroid and continuous feature
+    private int[][] streamCounts;
+    private int[][][] streamValueCounts;    // per centroid and nominal feature, per value
+    private double streamSSE;
+    private double streamLastSSE;
+
     public KMeans(Random rand)
     {
         this.rand = rand;
@@ -36,6 +46,7 @@ public class KMeans
         {
             nominals[i] = features.valueCount(i) != 0;
         }
+        distance = Distance.of(features);
 
         map = new CentroidMap(k, features);
         double lastIterationSSE = 0.0;
@@ -93,28 +104,129 @@ public class KMeans
         return sum / scores.size();
     }
 
-    private double distance(double[] one, double[] two)
+    public void startTraining(Matrix features, Matrix labels) throws Exception
     {
-        double sum = 0;
-        for (int i = 0; i < one.length; i++)
+        nominals = new boolean[features.cols()];
+        for (int i = 0; i < features.cols(); i++)
+        {
+            nominals[i] = features.valueCount(i) != 0;
+        }
+        streamCentroids = null;
+        streamSums = new double[k][features.cols()];
+        streamCounts = new int[k][features.cols()];
+        streamValueCounts = new int[k][features.cols()][];
+        for (int i = 0; i < k; i++)
         {
-            if (one[i] == Double.MAX_VALUE || two[i] == Double.MAX_VALUE)
+            for (int j = 0; j < features.cols(); j++)
             {
-                sum += 1;
-                continue;
+                streamValueCounts[i][j] = new int[features.valueCount(j)];
             }
-            if (nominals[i])
+        }
+        streamSSE = 0.0;
+        streamLastSSE = 0.0;
+    }
+
+    public void trainBatch(Matrix features, Matrix labels) throws Exception
+    {
+        if (streamCentroids == null)
+        {
+            // start from random instances of the first batch
+            streamCentroids = new double[k][];
+            for (int i = 0; i < k; i++)
             {
-                if (one[i] != two[i])
+                int randomIndex = Math.abs(rand.nextInt() % features.rows());
+                streamCentroids[i] = features.row(randomIndex).clone();
+            }
+        }
+        for (int i = 0; i < features.rows(); i++)
+        {
+            double[] node = features.row(i);
+            int closestCentroid = -1;
+            double closestDistance = Double.MAX_VALUE;
+            for (int j = 0; j < streamCentroids.length; j++)
+            {
+                // the batches are not known to be complete, so the mixed distance is used
+                double centroidDistance = Math.sqrt(Kernels.mixedSquaredDistance(node, streamCentroids[j], nominals, node.length));
+                if (centroidDistance < closestDistance)
+                {
+                    closestCentroid = j;
+                    closestDistance = centroidDistance;
+                }
+            }
+            streamSSE += closestDistance * closestDistance;
+            for (int feature = 0; feature < node.length; feature++)
+            {
+                double value = node[feature];
+                if (value == Double.MAX_VALUE)
+                {
+                    continue;
+                }
+                if (nominals[feature])
+                {
+                    streamValueCounts[closestCentroid][feature][(int) value]++;
+                }
+                else
                 {
-                    sum += 1;
+                    streamSums[closestCentroid][feature] += value;
+                    streamCounts[closestCentroid][feature]++;
                 }
-                continue;
             }
-            sum += Math.pow(one[i] - two[i], 2);
         }
+    }
+
+    // Moves each centroid to the mean (or, for nominal features, the most common value)
+    // of its members. Returns true until the SSE stops changing.
+    public boolean endPass() throws Exception
+    {
+        if (streamCentroids == null)
+        {
+            return false;
+        }
+        for (int centroid = 0; centroid < k; centroid++)
+        {
+            for (int feature = 0; feature < nominals.length; feature++)
+            {
+                if (nominals[feature])
+                {
+                    // ties go to the lowest value
+                    int[] counts = streamValueCounts[centroid][feature];
+                    int greatestCount = 0;
+                    double mostCommonNominalValue = -1.0;
+                    for (int value = 0; value < counts.length; value++)
+                    {
+                        if (counts[value] > greatestCount)
+                        {
+                            greatestCount = counts[value];
+                            mostCommonNominalValue = value;
+                        }
+                        counts[value] = 0;
+                    }
+                    streamCentroids[centroid][feature] = mostCommonNominalValue;
+                }
+                else
+                {
+                    int count = streamCounts[centroid][feature];
+                    streamCentroids[centroid][feature] = count > 0 ? streamSums[centroid][feature] / count : Double.MAX_VALUE;
+                    streamSums[centroid][feature] = 0.0;
+                    streamCounts[centroid][feature] = 0;
+                }
+            }
+        }
+        boolean changing = streamSSE != streamLastSSE;
+        streamLastSSE = streamSSE;
+        streamSSE = 0.0;
+        if (!changing)
+        {
+            System.out.println("Number of clusters: " + k);
+            System.out.println("Total SSE: " + rounder.format(streamLastSSE));
+        }
+        return changing;
+    }
 
-        return Math.sqrt(sum);
+    // Returns the centroids found by training from a stream
+    public double[][] getCentroids()
+    {
+        return streamCentroids;
     }
 
     public void setK(int k)
@@ -164,17 +276,13 @@ public class KMeans
                 distancesToCentroids.add(new ArrayList<>());
                 distancesToNodes[i] = new double[data.rows()];
             }
+            double[] squaredDistances = new double[data.rows()];
             for (int i = 0; i < data.rows(); i++)
             {
-                for (int j = i; j < data.rows(); j++)
+                distance.squaredTo(data.row(i), i + 1, data.rows(), squaredDistances);
+                for (int j = i + 1; j < data.rows(); j++)
                 {
-                    if (j == i)
-                    {
-                        distancesToNodes[i][j] = 0;
-                        distancesToNodes[j][i] = 0;
-                        continue;
-                    }
-                    double distanceToNode = distance(data.row(i), data.row(j));
+                    double distanceToNode = Math.sqrt(squaredDistances[j]);
                     distancesToNodes[i][j] = distanceToNode;
                     distancesToNodes[j][i] = distanceToNode;
                 }
@@ -188,14 +296,19 @@ public class KMeans
                 clear();
             }
             boolean change = false;
+            // measure each centroid against all the instances at once
+            double[][] squaredDistances = new double[centroids.length][data.rows()];
+            for (int j = 0; j < centroids.length; j++)
+            {
+                distance.squaredTo(centroids[j], 0, data.rows(), squaredDistances[j]);
+            }
             for (int i = 0; i < data.rows(); i++)
             {
-                double[] node = data.row(i);
                 int closestCentroid = -1;
                 double closestDistance = Double.MAX_VALUE;
                 for (int j = 0; j < centroids.length; j++)
                 {
-                    double centroidDistance = distance(node, centroids[j]);
+                    double centroidDistance = Math.sqrt(squaredDistances[j][i]);
                     distancesToCentroids.get(i).add(centroidDistance);
                     if (centroidDistance < closestDistance)
                     {
@@ -219,30 +332,24 @@ public class KMeans
                 {
                     if (nominals[feature])
                     {
-                        HashMap<Double, Integer> counts = new HashMap<>();
+                        int[] counts = new int[data.valueCount(feature)];
                         for (int member : centroidMembers.get(centroid))
                         {
-                            double nominalValue = data.row(member)[feature];
+                            double nominalValue = data.get(member, feature);
                             if (nominalValue != Double.MAX_VALUE)
                             {
-                                if (counts.containsKey(nominalValue))
-                                {
-                                    counts.put(nominalValue, counts.get(nominalValue) + 1);
-                                }
-                                else
-                                {
-                                    counts.put(nominalValue, 1);
-                                }
+                                counts[(int) nominalValue]++;
                             }
                         }
-                        int greatestCount = -1;
+                        // ties go to the lowest value
+                        int greatestCount = 0;
                         double mostCommonNominalValue = -1.0;
-                        for (Map.Entry<Double, Integer> entry : counts.entrySet())
+                        for (int value = 0; value < counts.length; value++)
                         {
-                            if (entry.getValue() > greatestCount || (entry.getValue() == greatestCount && entry.getKey() < mostCommonNominalValue))
+                            if (counts[value] > greatestCount)
                             {
-                                greatestCount = entry.getValue();
-                                mostCommonNominalValue = entry.getKey();
+                                greatestCount = counts[value];
+                                mostCommonNominalValue = value;
                             }
                         }
                         centroids[centroid][feature] = mostCommonNominalValue;
@@ -253,7 +360,7 @@ public class KMeans
                         int count = 0;
                         for (int member : centroidMembers.get(centroid))
                         {
-                            double realValue = data.row(member)[feature];
+                            double realValue = data.get(member, feature);
                             if (realValue == Double.MAX_VALUE)
                             {
                                 sum += 0;
@@ -322,7 +429,7 @@ public class KMeans
                     }
                     else
                     {
-                        line.append(" " + data.m_enum_to_str.get(j).get(((int) centroids[centoid][j])));
+                        line.append(" " + data.attrValue(j, (int) centroids[centoid][j]));
                     }
                 }
                 else
@@ -376,7 +483,8 @@ public class KMeans
             for (int member : members)
             {
                 int assignedTo = assignments.get(member);
-                sum += Math.pow(distancesToCentroids.get(member).get(assignedTo), 2);
+                double distance = distancesToCentroids.get(member).get(assignedTo);
+                sum += distance * distance;
             }
 
             return sum;
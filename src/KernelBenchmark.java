@@ -0,0 +1,196 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+/**
+ * Times the Kernels on the instances of ARFF files: a dot product of every
+ * instance with a weight vector, and the squared and mixed distances between
+ * every pair of (up to MAX_ROWS) instances. Each kernel is timed as the learners
+ * used to write it (Math.pow, bias test inside the loop), with the scalar kernels,
+ * and with the kernels in use, which are the vector kernels when the JVM has the
+ * Vector API (see Kernels).
+ */
+public class KernelBenchmark
+{
+    private static final int MAX_ROWS = 2000;
+    private static final int RUNS = 7;
+
+    // What the kernels return, kept so the JIT cannot drop the work
+    private static double sink;
+
+    private interface Kernel
+    {
+        double run(double[][] rows, double[] weights, boolean[] nominal);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length == 0)
+        {
+            System.out.println("Usage:");
+            System.out.println("KernelBenchmark [ARFF_File]...");
+            System.exit(0);
+        }
+        System.out.println("Kernels in use: " + Kernels.active().name());
+        for (String filename : args)
+        {
+            Matrix data = new Matrix();
+            data.load(filename);
+            int rows = Math.min(data.rows(), MAX_ROWS);
+            int cols = data.cols() - 1;
+            double[][] instances = new double[rows][];
+            for (int i = 0; i < rows; i++)
+            {
+                instances[i] = new double[cols];
+                for (int j = 0; j < cols; j++)
+                {
+                    instances[i][j] = data.get(i, j);
+                }
+            }
+            boolean[] nominal = new boolean[cols];
+            double[] weights = new double[cols + 1];
+            for (int j = 0; j < cols; j++)
+            {
+                nominal[j] = data.valueCount(j) != 0;
+                weights[j] = 1.0 / (j + 1);
+            }
+            weights[cols] = -0.5;
+            System.out.println();
+            System.out.println(filename + ": " + rows + " instances, " + cols + " features");
+
+            Kernels scalar = Kernels.scalar();
+            Kernels active = Kernels.active();
+            report("dot product", instances, weights, nominal,
+                (r, w, n) -> dotBefore(r, w),
+                (r, w, n) -> dot(scalar, r, w),
+                (r, w, n) -> dot(active, r, w));
+            report("squared distance", instances, weights, nominal,
+                (r, w, n) -> pairsBefore(r, null),
+                (r, w, n) -> squaredPairs(scalar, r),
+                (r, w, n) -> squaredPairs(active, r));
+            report("mixed distance", instances, weights, nominal,
+                (r, w, n) -> pairsBefore(r, n),
+                (r, w, n) -> mixedPairs(scalar, r, n),
+                (r, w, n) -> mixedPairs(active, r, n));
+        }
+    }
+
+    private static void report(String name, double[][] rows, double[] weights, boolean[] nominal, Kernel before, Kernel scalar, Kernel active) throws Exception
+    {
+        double beforeTime = time(before, rows, weights, nominal);
+        double scalarTime = time(scalar, rows, weights, nominal);
+        double activeTime = time(active, rows, weights, nominal);
+        System.out.println(String.format("  %-17s before %8.2f ms   scalar %8.2f ms (%.2fx)   %s %8.2f ms (%.2fx)",
+            name, beforeTime, scalarTime, beforeTime / scalarTime, Kernels.active().name(), activeTime, beforeTime / activeTime));
+    }
+
+    // Returns the best time of RUNS runs, in milliseconds, after warming up
+    private static double time(Kernel kernel, double[][] rows, double[] weights, boolean[] nominal) throws Exception
+    {
+        return Latencies.time(RUNS, RUNS, run -> sink += kernel.run(rows, weights, nominal)).percentiles(0)[0];
+    }
+
+    private static double dot(Kernels kernels, double[][] rows, double[] weights)
+    {
+        double sum = 0;
+        for (int rep = 0; rep < 100; rep++)
+        {
+            for (double[] row : rows)
+            {
+                sum += kernels.dotProduct(row, weights, row.length) + weights[row.length];
+            }
+        }
+        return sum;
+    }
+
+    private static double squaredPairs(Kernels kernels, double[][] rows)
+    {
+        double sum = 0;
+        for (int i = 0; i < rows.length; i++)
+        {
+            for (int j = 0; j < rows.length; j++)
+            {
+                sum += kernels.sumSquaredDifferences(rows[i], rows[j], rows[i].length);
+            }
+        }
+        return sum;
+    }
+
+    private static double mixedPairs(Kernels kernels, double[][] rows, boolean[] nominal)
+    {
+        double sum = 0;
+        for (int i = 0; i < rows.length; i++)
+        {
+            for (int j = 0; j < rows.length; j++)
+            {
+                sum += kernels.sumMixedDifferences(rows[i], rows[j], nominal, rows[i].length);
+            }
+        }
+        return sum;
+    }
+
+    // The net input as Perceptron and NeuralNet used to sum it
+    private static double dotBefore(double[][] rows, double[] weights)
+    {
+        double sum = 0;
+        for (int rep = 0; rep < 100; rep++)
+        {
+            for (double[] row : rows)
+            {
+                double net = 0;
+                for (int i = 0; i < row.length + 1; i++)
+                {
+                    if (i == row.length)
+                    {
+                        net += 1 * weights[i];
+                    }
+                    else
+                    {
+                        net += row[i] * weights[i];
+                    }
+                }
+                sum += net;
+            }
+        }
+        return sum;
+    }
+
+    // The distances as InstanceBasedLearner and KMeans used to sum them, treating
+    // every attribute as continuous when nominal is null
+    private static double pairsBefore(double[][] rows, boolean[] nominal)
+    {
+        double sum = 0;
+        for (int i = 0; i < rows.length; i++)
+        {
+            for (int j = 0; j < rows.length; j++)
+            {
+                double[] one = rows[i];
+                double[] two = rows[j];
+                double distance = 0;
+                for (int k = 0; k < one.length; k++)
+                {
+                    if (nominal != null)
+                    {
+                        if (one[k] == Double.MAX_VALUE || two[k] == Double.MAX_VALUE)
+                        {
+                            distance += 1;
+                            continue;
+                        }
+                        if (nominal[k])
+                        {
+                            if (one[k] != two[k])
+                            {
+                                distance += 1;
+                            }
+                            continue;
+                        }
+                    }
+                    distance += Math.pow(one[k] - two[k], 2);
+                }
+                sum += distance;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,91 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.util.Random;
+
+/**
+ * Sizes the kernel cache of KernelPerceptron. Each ARFF file is normalized, its
+ * rows without a label are dropped, and it is shuffled and split 70/30 as
+ * MLSystemManager's random evaluation splits it. For the RBF and polynomial kernels
+ * it trains with caches holding all, half, a quarter, a tenth and a twentieth of
+ * the Gram rows, and reports the size of the cache, its hit rate, the kernel
+ * evaluations and evaluations per second, the training time, the support vectors
+ * and epochs, and the test set accuracy. The cache does not change what is learned,
+ * only how many kernel values are computed again, so the accuracy is the same in
+ * every row of a kernel; the smallest cache whose hit rate is close to the full
+ * cache's is the one to use.
+ */
+public class KernelCacheBenchmark
+{
+    private static final double[] FRACTIONS = { 1, .5, .25, .1, .05 };
+    private static final String[] KERNELS = { "rbf", "polynomial" };
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length == 0)
+        {
+            System.out.println("Usage:");
+            System.out.println("KernelCacheBenchmark [ARFF_File]...");
+            System.exit(0);
+        }
+        for (String filename : args)
+        {
+            Matrix loaded = new Matrix();
+            loaded.load(filename);
+            int label = loaded.cols() - 1;
+            System.out.println();
+            if (loaded.valueCount(label) < 2)
+            {
+                System.out.println(filename + ": skipped, the label is not nominal");
+                continue;
+            }
+            Matrix data = new Matrix(loaded, 0, 0, 0, loaded.cols());
+            for (int r = 0; r < loaded.rows(); r++)
+            {
+                if (loaded.get(r, label) != Matrix.MISSING)
+                {
+                    data.addRow(loaded.row(r));
+                }
+            }
+            data.normalize();
+            data.shuffle(new Random(1234));
+            int trainSize = (int) (0.7 * data.rows());
+            Matrix testFeatures = data.view(trainSize, 0, data.rows() - trainSize, label);
+            Matrix testLabels = data.view(trainSize, label, data.rows() - trainSize, 1);
+            System.out.println(filename + ": " + trainSize + " training rows, " + testFeatures.rows() + " test rows, " + label + " features");
+
+            for (String kernel : KERNELS)
+            {
+                report(data, trainSize, testFeatures, testLabels, kernel);
+            }
+        }
+    }
+
+    private static void report(Matrix data, int trainSize, Matrix testFeatures, Matrix testLabels, String kernel) throws Exception
+    {
+        int label = data.cols() - 1;
+        for (double fraction : FRACTIONS)
+        {
+            double megabytes = KernelPerceptron.cacheMegabytes((int) Math.round(fraction * trainSize), trainSize);
+            KernelPerceptron[] learner = new KernelPerceptron[1];
+            Latencies time = Latencies.time(1, 1, run ->
+            {
+                // train shuffles the rows of the views it is given, the same way each time
+                Matrix trainFeatures = data.view(0, 0, trainSize, label);
+                Matrix trainLabels = data.view(0, label, trainSize, 1);
+                learner[0] = new KernelPerceptron(new Random(0));
+                learner[0].setVerbose(false);
+                learner[0].setKernel(kernel);
+                learner[0].setCacheMegabytes(megabytes);
+                learner[0].train(trainFeatures, trainLabels);
+            });
+            KernelPerceptron trained = learner[0];
+            double accuracy = trained.measureAccuracy(testFeatures, testLabels, null);
+            System.out.println(String.format("  %-10s cache %5d rows %8.3f MB  hit rate %.4f  %10d evaluations %12.0f per second  %8.2f ms  %4d support vectors  epochs %3d  test accuracy %.4f",
+                kernel, trained.cacheRows(), megabytes, trained.cacheHitRate(), trained.kernelEvaluations(),
+                trained.kernelEvaluationsPerSecond(), time.mean(), trained.supportVectors(), trained.epochs(), accuracy));
+        }
+    }
+}
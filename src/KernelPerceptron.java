@@ -0,0 +1,483 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+// A perceptron in dual form: instead of weights it keeps, for every training row it
+// has made a mistake on (its support vectors), how often that row has been added to
+// or subtracted from each class, and the net of a class is the sum over the support
+// vectors of those counts times the kernel of the support vector and the instance.
+// With an RBF or polynomial kernel it learns boundaries Perceptron cannot. A label
+// with any number of values is trained as one multi-class perceptron: a mistake adds
+// the row to the right class and subtracts it from the predicted one.
+//
+// Training needs the kernel of every row and every support vector, every epoch. The
+// Gram rows are kept in a cache bounded in megabytes (see setCacheMegabytes), and the
+// support vectors are bounded too (see setMaxSupportVectors), so the memory does not
+// grow without bound with the data. Training reports the cache's hit rate and the
+// kernel evaluations per second; KernelCacheBenchmark compares cache sizes.
+public class KernelPerceptron extends SupervisedLearner
+{
+    private static final int RBF = 0;           // exp(-gamma * |a - b|^2), nominal values by mixedSquaredDistance
+    private static final int POLYNOMIAL = 1;    // (gamma * a.b + 1)^degree, a.b by mixedDot
+
+    private static final int MAX_EPOCHS = 100;
+
+    private Random rand;
+    private boolean verbose = true;     // print the progress of training and the cache report
+    private int kernel = RBF;
+    private double gamma;               // the kernel's scale, or 0 to pick one from the data
+    private int degree = 3;
+    private double cacheMegabytes = 64; // bound on the kernel cache
+    private int maxSupportVectors = 4096;
+
+    // The trained model
+    private double kernelGamma;
+    private int classes;
+    private boolean[] nominal;
+    private double[][] supportRows;
+    private double[] supportAlphas;     // [supportVectors x classes]
+
+    // Report of the last training
+    private int epochs;
+    private long evaluations;           // kernel values computed
+    private long lookups;               // kernel values needed
+    private long evictions;             // Gram rows evicted from the cache
+    private int cacheRows;              // Gram rows the cache can hold
+    private double seconds;
+
+    public KernelPerceptron(Random rand)
+    {
+        this.rand = rand;
+    }
+
+    // A row of the Gram matrix: the kernel of a training row and each support vector,
+    // computed when first needed. computed has a bit per value that has been; any
+    // double, NaN included, may be a kernel value.
+    private static class GramRow
+    {
+        final double[] values;
+        final long[] computed;
+
+        GramRow(int rows)
+        {
+            values = new double[rows];
+            computed = new long[(rows + 63) >>> 6];
+        }
+
+        // The bytes a row takes for this many training rows
+        static long bytes(int rows)
+        {
+            return 8L * rows + 8L * ((rows + 63) >>> 6);
+        }
+    }
+
+    // The Gram rows, one per training row. Rows are evicted least recently used first
+    // once there are more than the capacity.
+    private class KernelCache extends LinkedHashMap<Integer, GramRow>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int capacity;
+        private int rows;
+
+        KernelCache(int capacity, int rows)
+        {
+            super(16, .75f, true);
+            this.capacity = capacity;
+            this.rows = rows;
+        }
+
+        // The Gram row of training row i, which is made (empty) if it is not cached
+        GramRow row(int i)
+        {
+            GramRow row = get(i);
+            if (row == null)
+            {
+                row = new GramRow(rows);
+                put(i, row);
+            }
+            return row;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, GramRow> eldest)
+        {
+            if (size() > capacity)
+            {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void train(Matrix inputs, Matrix targets) throws Exception
+    {
+        classes = targets.valueCount(0);
+        if (classes < 2)
+        {
+            throw new Exception("KernelPerceptron needs a nominal label");
+        }
+        int n = inputs.cols();
+        nominal = new boolean[n];
+        for (int i = 0; i < n; i++)
+        {
+            nominal[i] = inputs.valueCount(i) > 0;
+        }
+        inputs.shuffle(rand, targets);
+
+        // the rows with a label, and the label
+        int rows = 0;
+        double[][] x = new double[inputs.rows()][];
+        int[] y = new int[inputs.rows()];
+        for (int r = 0; r < inputs.rows(); r++)
+        {
+            double label = targets.get(r, 0);
+            if (label != Matrix.MISSING)
+            {
+                x[rows] = inputs.row(r);
+                y[rows] = (int) label;
+                rows++;
+            }
+        }
+        kernelGamma = gamma > 0 ? gamma : defaultGamma(x, rows);
+
+        double[] alphas = new double[rows * classes];
+        int[] support = new int[Math.min(rows, maxSupportVectors)];
+        int supportCount = 0;
+        boolean[] isSupport = new boolean[rows];
+        double[] nets = new double[classes];
+        cacheRows = (int) Math.max(1, Math.min(rows, cacheMegabytes * (1 << 20) / GramRow.bytes(rows)));
+        KernelCache cache = new KernelCache(cacheRows, rows);
+        evaluations = 0;
+        lookups = 0;
+        evictions = 0;
+        long start = System.nanoTime();
+
+        if (verbose)
+        {
+            System.out.println("\nEpoch Accuracy:");
+        }
+        int epochsWithoutImprovement = 0;
+        double lastAccuracy = 0.0;
+        int epoch = 0;
+        while (epochsWithoutImprovement < 5 && epoch < MAX_EPOCHS)
+        {
+            epoch++;
+            int correct = 0;
+            // Every other epoch presents the rows in reverse, so the Gram rows a cache
+            // smaller than the data still holds from the end of one epoch are the first
+            // ones the next needs. In the same order each time, least recently used
+            // would always evict the row that is needed next, and nothing would hit.
+            boolean forward = (epoch & 1) == 1;
+            for (int step = 0; step < rows; step++)
+            {
+                int i = forward ? step : rows - 1 - step;
+                GramRow gram = cache.row(i);
+                Arrays.fill(nets, 0);
+                for (int s = 0; s < supportCount; s++)
+                {
+                    int j = support[s];
+                    double k;
+                    if ((gram.computed[j >>> 6] & (1L << j)) != 0)
+                    {
+                        k = gram.values[j];
+                    }
+                    else
+                    {
+                        k = kernel(x[j], x[i]);
+                        gram.values[j] = k;
+                        gram.computed[j >>> 6] |= 1L << j;
+                        evaluations++;
+                    }
+                    for (int c = 0, a = j * classes; c < classes; c++, a++)
+                    {
+                        nets[c] += alphas[a] * k;
+                    }
+                }
+                lookups += supportCount;
+                int predicted = argmax(nets);
+                if (predicted == y[i])
+                {
+                    correct++;
+                    continue;
+                }
+                if (!isSupport[i])
+                {
+                    if (supportCount == support.length)
+                    {
+                        // over budget, so the oldest support vector is forgotten
+                        int oldest = support[0];
+                        System.arraycopy(support, 1, support, 0, --supportCount);
+                        isSupport[oldest] = false;
+                        Arrays.fill(alphas, oldest * classes, (oldest + 1) * classes, 0);
+                    }
+                    support[supportCount++] = i;
+                    isSupport[i] = true;
+                }
+                alphas[i * classes + y[i]] += 1;
+                alphas[i * classes + predicted] -= 1;
+            }
+            double accuracy = (double)correct / rows;
+            if (accuracy - lastAccuracy > .01)
+            {
+                epochsWithoutImprovement = 0;
+            }
+            else
+            {
+                epochsWithoutImprovement++;
+            }
+            lastAccuracy = accuracy;
+            if (verbose)
+            {
+                System.out.println(epoch + ", " + accuracy);
+            }
+            if (correct == rows)
+            {
+                // nothing more would change
+                break;
+            }
+        }
+        seconds = (System.nanoTime() - start) / 1e9;
+        epochs = epoch;
+
+        supportRows = new double[supportCount][];
+        supportAlphas = new double[supportCount * classes];
+        for (int s = 0; s < supportCount; s++)
+        {
+            supportRows[s] = x[support[s]].clone();
+            System.arraycopy(alphas, support[s] * classes, supportAlphas, s * classes, classes);
+        }
+        if (verbose)
+        {
+            System.out.println("Number of epochs before haulting: " + epoch);
+            System.out.println("Support vectors: " + supportCount + " of " + rows + " rows");
+            System.out.println(String.format("Kernel cache: %d of %d Gram rows (%.1f MB), hit rate %.4f, %d evictions",
+                cacheRows, rows, cacheMegabytes(cacheRows, rows), cacheHitRate(), evictions));
+            System.out.println(String.format("Kernel evaluations: %d in %.3f seconds, %.0f per second",
+                evaluations, seconds, kernelEvaluationsPerSecond()));
+            System.out.println();
+        }
+    }
+
+    @Override
+    public void predict(double[] features, double[] prediction) throws Exception
+    {
+        double[] nets = new double[classes];
+        for (int s = 0, a = 0; s < supportRows.length; s++)
+        {
+            double k = kernel(supportRows[s], features);
+            for (int c = 0; c < classes; c++, a++)
+            {
+                nets[c] += supportAlphas[a] * k;
+            }
+        }
+        prediction[0] = argmax(nets);
+    }
+
+    // A scale for the kernel from the first rows of the shuffled data, whatever the
+    // scale and mix of the attributes. For the RBF kernel 2 / the mean squared distance
+    // between neighbouring rows (as 1 / (features * variance) is for continuous
+    // features), so the kernel of two typical rows is about e^-2. For the polynomial
+    // kernel 1 / the mean squared length of a row, so gamma * a.b is about 1.
+    private double defaultGamma(double[][] x, int rows)
+    {
+        double sum = 0;
+        int count = Math.min(rows - 1, 1000);
+        for (int i = 0; i < count; i++)
+        {
+            if (kernel == RBF)
+            {
+                sum += Kernels.mixedSquaredDistance(x[i], x[i + 1], nominal, nominal.length);
+            }
+            else
+            {
+                sum += mixedDot(x[i], x[i]);
+            }
+        }
+        return sum > 0 ? (kernel == RBF ? 2 : 1) * count / sum : 1.0 / nominal.length;
+    }
+
+    // The first class with the highest net
+    private static int argmax(double[] nets)
+    {
+        int best = 0;
+        for (int c = 1; c < nets.length; c++)
+        {
+            if (nets[c] > nets[best])
+            {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private double kernel(double[] a, double[] b)
+    {
+        if (kernel == RBF)
+        {
+            return Math.exp(-kernelGamma * Kernels.mixedSquaredDistance(a, b, nominal, nominal.length));
+        }
+        return Math.pow(kernelGamma * mixedDot(a, b) + 1, degree);
+    }
+
+    // The dot product of the rows with each nominal attribute as its one-hot encoding
+    // (1 where the values match, 0 where they differ), and missing values as 0
+    private double mixedDot(double[] a, double[] b)
+    {
+        double sum = 0;
+        for (int i = 0; i < nominal.length; i++)
+        {
+            if (a[i] == Matrix.MISSING || b[i] == Matrix.MISSING)
+            {
+                continue;
+            }
+            if (nominal[i])
+            {
+                sum += a[i] == b[i] ? 1 : 0;
+            }
+            else
+            {
+                sum += a[i] * b[i];
+            }
+        }
+        return sum;
+    }
+
+    // Uses the "rbf" or the "polynomial" kernel
+    public void setKernel(String name) throws Exception
+    {
+        if (name.equals("rbf"))
+        {
+            kernel = RBF;
+        }
+        else if (name.equals("polynomial"))
+        {
+            kernel = POLYNOMIAL;
+        }
+        else
+        {
+            throw new Exception("Unrecognized kernel: " + name);
+        }
+    }
+
+    // The kernel's scale, or 0 (the default) to pick one from the data (see defaultGamma)
+    public void setGamma(double gamma)
+    {
+        this.gamma = gamma;
+    }
+
+    // The degree of the polynomial kernel
+    public void setDegree(int degree)
+    {
+        this.degree = degree;
+    }
+
+    // Bounds the memory of the Gram rows cached during training, a little over 8 bytes
+    // per training row per cached row (see cacheMegabytes). The rows that fit are kept,
+    // least recently used first out.
+    public void setCacheMegabytes(double cacheMegabytes)
+    {
+        this.cacheMegabytes = cacheMegabytes;
+    }
+
+    // Bounds the support vectors, so the model's size does not grow with the data.
+    // Once there are this many, a new one replaces the oldest.
+    public void setMaxSupportVectors(int maxSupportVectors)
+    {
+        this.maxSupportVectors = Math.max(1, maxSupportVectors);
+    }
+
+    // Turns the per-epoch and cache printouts of training on or off
+    public void setVerbose(boolean verbose)
+    {
+        this.verbose = verbose;
+    }
+
+    // The number of epochs the last training took
+    int epochs()
+    {
+        return epochs;
+    }
+
+    // The number of support vectors of the model
+    int supportVectors()
+    {
+        return supportRows.length;
+    }
+
+    // The megabytes a cache of this many Gram rows takes when training on this many rows
+    static double cacheMegabytes(int cacheRows, int rows)
+    {
+        return (double) cacheRows * GramRow.bytes(rows) / (1 << 20);
+    }
+
+    // The Gram rows the cache could hold in the last training
+    int cacheRows()
+    {
+        return cacheRows;
+    }
+
+    // The fraction of the kernel values needed in the last training that were found
+    // in the cache
+    double cacheHitRate()
+    {
+        return lookups == 0 ? 0 : 1 - (double) evaluations / lookups;
+    }
+
+    // The kernel values computed in the last training
+    long kernelEvaluations()
+    {
+        return evaluations;
+    }
+
+    // Kernel values computed per second of the last training
+    double kernelEvaluationsPerSecond()
+    {
+        return seconds == 0 ? 0 : evaluations / seconds;
+    }
+
+    @Override
+    protected void writeModel(ModelFile.Output out) throws Exception
+    {
+        out.writeInt(kernel);
+        out.writeDouble(kernelGamma);
+        out.writeInt(degree);
+        out.writeInt(classes);
+        int[] nominalColumns = new int[nominal.length];
+        for (int i = 0; i < nominal.length; i++)
+        {
+            nominalColumns[i] = nominal[i] ? 1 : 0;
+        }
+        out.writeInts(nominalColumns);
+        out.writeInt(supportRows.length);
+        for (double[] row : supportRows)
+        {
+            out.writeDoubles(row);
+        }
+        out.writeDoubles(supportAlphas);
+    }
+
+    @Override
+    protected void readModel(ModelFile.Input in) throws Exception
+    {
+        kernel = in.readInt();
+        kernelGamma = in.readDouble();
+        degree = in.readInt();
+        classes = in.readInt();
+        int[] nominalColumns = in.readInts();
+        nominal = new boolean[nominalColumns.length];
+        for (int i = 0; i < nominal.length; i++)
+        {
+            nominal[i] = nominalColumns[i] != 0;
+        }
+        supportRows = new double[in.readInt()][];
+        for (int s = 0; s < supportRows.length; s++)
+        {
+            supportRows[s] = in.readDoubles();
+        }
+        supportAlphas = in.readDoubles();
+    }
+}
@@ -0,0 +1,181 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+/**
+ * The arithmetic the learners share: dot products, squared Euclidean distances and
+ * HEOM-style mixed distances over arrays of doubles.
+ *
+ * Every sum is taken in LANES interleaved lanes (element i goes to lane i % LANES),
+ * the lanes are added in order, and then the elements left over after the last
+ * full group of LANES are added one at a time. This class does that with scalar
+ * code; vector/VectorKernels.java does it with the Vector API, one lane per vector
+ * element, in exactly the same order, so both give the same bits and a learner's
+ * results do not depend on which one runs. VectorKernels is used when it has been
+ * compiled and the JVM was started with the incubator module:
+ *
+ *   javac --add-modules jdk.incubator.vector -d out src/*.java src/vector/*.java
+ *   java --add-modules jdk.incubator.vector -cp out MLSystemManager ...
+ *
+ * Otherwise this class's scalar code is used.
+ */
+class Kernels
+{
+    static final int LANES = 4;
+
+    private static final Kernels SCALAR = new Kernels();
+    private static final Kernels ACTIVE = load();
+
+    // Uses VectorKernels if it is there and the Vector API can be loaded
+    private static Kernels load()
+    {
+        try
+        {
+            Kernels kernels = (Kernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+            // make sure the vector classes link before committing to them
+            kernels.dotProduct(new double[LANES], new double[LANES], LANES);
+            return kernels;
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            return SCALAR;
+        }
+    }
+
+    // Returns the kernels in use
+    static Kernels active()
+    {
+        return ACTIVE;
+    }
+
+    // Returns the scalar kernels, whatever is in use
+    static Kernels scalar()
+    {
+        return SCALAR;
+    }
+
+    // Returns the sum of a[i] * b[i] for i < n
+    static double dot(double[] a, double[] b, int n)
+    {
+        return ACTIVE.dotProduct(a, b, n);
+    }
+
+    // Returns the sum of a[i] * b[offset + i] for i < n, for vectors stored back to
+    // back in one array
+    static double dot(double[] a, double[] b, int offset, int n)
+    {
+        return ACTIVE.dotProduct(a, b, offset, n);
+    }
+
+    // Returns the sum of (a[i] - b[i])^2 for i < n
+    static double squaredDistance(double[] a, double[] b, int n)
+    {
+        return ACTIVE.sumSquaredDifferences(a, b, n);
+    }
+
+    // Returns the squared HEOM-style distance over the first n attributes: 1 where
+    // either value is MISSING, 1 where nominal values differ (0 where they match),
+    // and (a[i] - b[i])^2 for continuous values
+    static double mixedSquaredDistance(double[] a, double[] b, boolean[] nominal, int n)
+    {
+        return ACTIVE.sumMixedDifferences(a, b, nominal, n);
+    }
+
+    // A name for the kernels, for reports
+    String name()
+    {
+        return "scalar";
+    }
+
+    double dotProduct(double[] a, double[] b, int n)
+    {
+        return dotProduct(a, b, 0, n);
+    }
+
+    double dotProduct(double[] a, double[] b, int offset, int n)
+    {
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        int i = 0;
+        for (; i + LANES <= n; i += LANES)
+        {
+            s0 += a[i] * b[offset + i];
+            s1 += a[i + 1] * b[offset + i + 1];
+            s2 += a[i + 2] * b[offset + i + 2];
+            s3 += a[i + 3] * b[offset + i + 3];
+        }
+        double sum = s0 + s1 + s2 + s3;
+        for (; i < n; i++)
+        {
+            sum += a[i] * b[offset + i];
+        }
+        return sum;
+    }
+
+    double sumSquaredDifferences(double[] a, double[] b, int n)
+    {
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        int i = 0;
+        for (; i + LANES <= n; i += LANES)
+        {
+            double d0 = a[i] - b[i];
+            double d1 = a[i + 1] - b[i + 1];
+            double d2 = a[i + 2] - b[i + 2];
+            double d3 = a[i + 3] - b[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        double sum = s0 + s1 + s2 + s3;
+        for (; i < n; i++)
+        {
+            double d = a[i] - b[i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    double sumMixedDifferences(double[] a, double[] b, boolean[] nominal, int n)
+    {
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        int i = 0;
+        for (; i + LANES <= n; i += LANES)
+        {
+            s0 += mixedDifference(a[i], b[i], nominal[i]);
+            s1 += mixedDifference(a[i + 1], b[i + 1], nominal[i + 1]);
+            s2 += mixedDifference(a[i + 2], b[i + 2], nominal[i + 2]);
+            s3 += mixedDifference(a[i + 3], b[i + 3], nominal[i + 3]);
+        }
+        double sum = s0 + s1 + s2 + s3;
+        for (; i < n; i++)
+        {
+            sum += mixedDifference(a[i], b[i], nominal[i]);
+        }
+        return sum;
+    }
+
+    // The contribution of one attribute to mixedSquaredDistance
+    static double mixedDifference(double a, double b, boolean nominal)
+    {
+        if (a == Matrix.MISSING || b == Matrix.MISSING)
+        {
+            return 1;
+        }
+        if (nominal)
+        {
+            return a != b ? 1 : 0;
+        }
+        double d = a - b;
+        return d * d;
+    }
+}
@@ -0,0 +1,102 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.util.Arrays;
+
+/**
+ * The most recent WINDOW latencies, for reporting percentiles. Recording is a
+ * store into a ring; percentiles sort a copy of the ring, so they are meant to be
+ * asked for now and then (a stats request, the end of a run), not per request.
+ * time is the timing loop of the benchmarks.
+ */
+class Latencies
+{
+    static final int WINDOW = 1 << 16;
+
+    // Code being timed; i is the number of the run, from 0
+    interface Run
+    {
+        void run(int i) throws Exception;
+    }
+
+    private long[] m_nanos;
+    private long m_count;
+
+    Latencies()
+    {
+        this(WINDOW);
+    }
+
+    // Keeps the most recent window latencies
+    Latencies(int window)
+    {
+        m_nanos = new long[window];
+    }
+
+    // Runs run warmups times to warm up the JIT, then runs times more, and returns the
+    // latencies of those. Both are numbered from 0, so a warm-up does what the
+    // measured run of the same number does.
+    static Latencies time(int warmups, int runs, Run run) throws Exception
+    {
+        for (int i = 0; i < warmups; i++)
+        {
+            run.run(i);
+        }
+        Latencies latencies = new Latencies(runs);
+        for (int i = 0; i < runs; i++)
+        {
+            long start = System.nanoTime();
+            run.run(i);
+            latencies.record(System.nanoTime() - start);
+        }
+        return latencies;
+    }
+
+    synchronized void record(long nanos)
+    {
+        m_nanos[(int) (m_count++ % m_nanos.length)] = nanos;
+    }
+
+    // Returns the number of latencies recorded, including those that have left the window
+    synchronized long count()
+    {
+        return m_count;
+    }
+
+    // Returns the specified percentiles (0 to 100) of the latencies in the window, in
+    // milliseconds, or zeros if none have been recorded
+    double[] percentiles(double... percents)
+    {
+        long[] sorted;
+        synchronized (this)
+        {
+            sorted = Arrays.copyOf(m_nanos, (int) Math.min(m_count, m_nanos.length));
+        }
+        Arrays.sort(sorted);
+        double[] millis = new double[percents.length];
+        for (int i = 0; i < percents.length; i++)
+        {
+            if (sorted.length > 0)
+            {
+                int rank = (int) Math.ceil(percents[i] / 100 * sorted.length) - 1;
+                millis[i] = sorted[Math.max(0, Math.min(sorted.length - 1, rank))] / 1e6;
+            }
+        }
+        return millis;
+    }
+
+    // Returns the mean of the latencies in the window, in milliseconds, or 0 if none
+    // have been recorded
+    synchronized double mean()
+    {
+        int count = (int) Math.min(m_count, m_nanos.length);
+        long sum = 0;
+        for (int i = 0; i < count; i++)
+        {
+            sum += m_nanos[i];
+        }
+        return count == 0 ? 0 : sum / 1e6 / count;
+    }
+}
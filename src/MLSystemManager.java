@@ -18,6 +18,9 @@ public class MLSystemManager {
 	{
 		if (model.equals("baseline")) return new BaselineLearner();
 		 else if (model.equals("perceptron")) return new Perceptron(rand);
+		 else if (model.equals("averagedperceptron")) { Perceptron p = new Perceptron(rand); p.setAveraged(true); return p; }
+		 else if (model.equals("kernelperceptron")) return new KernelPerceptron(rand);
+		 else if (model.equals("polykernelperceptron")) { KernelPerceptron p = new KernelPerceptron(rand); p.setKernel("polynomial"); return p; }
 		 else if (model.equals("neuralnet")) return new NeuralNet(rand);
 		 else if (model.equals("decisiontree")) return new DecisionTree(rand);
 		 else if (model.equals("knn")) return new InstanceBasedLearner(rand);
@@ -39,13 +42,19 @@ public class MLSystemManager {
 		String evalParameter = parser.getEvalParameter(); //Evaluation parameters specified by the user
 		boolean printConfusionMatrix = parser.getVerbose();
 		boolean normalize = parser.getNormalize();
+		boolean columnar = parser.getColumnar();
+		boolean singlePrecision = parser.getSinglePrecision();
+		String outputName = parser.getOutput();
+		String modelName = parser.getModel();
 
 		// Load the model
 		SupervisedLearner learner = getLearner(learnerName, rand);
 
 		// Load the ARFF file
 		Matrix data = new Matrix();
-		data.loadArff(fileName);
+		data.setColumnar(columnar);
+		data.setSinglePrecision(singlePrecision);
+		data.load(fileName);
 
 //		Matrix tempData = new Matrix(data, 0, 3, data.rows(), data.cols() - 3);
 //		data = tempData;
@@ -54,6 +63,11 @@ public class MLSystemManager {
 			System.out.println("Using normalized data\n");
 			data.normalize();
 		}
+		if (outputName != null)
+		{
+			data.save(outputName);
+			System.out.println("Saved the data to " + outputName);
+		}
 
 		// create file for result storing
 		File outputFile = new File("results.csv");
@@ -79,13 +93,15 @@ public class MLSystemManager {
 		if (evalMethod.equals("training"))
 		{
 			System.out.println("Calculating accuracy on training set...");
-			Matrix features = new Matrix(data, 0, 0, data.rows(), data.cols() - 1);
-			Matrix labels = new Matrix(data, 0, data.cols() - 1, data.rows(), 1);
+			Matrix features = data.view(0, 0, data.rows(), data.cols() - 1);
+			Matrix labels = data.view(0, data.cols() - 1, data.rows(), 1);
 			Matrix confusion = new Matrix();
 			double startTime = System.currentTimeMillis();
 			learner.train(features, labels);
 			double elapsedTime = System.currentTimeMillis() - startTime;
 			System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
+			if (modelName != null)
+				saveModel(learner, features, labels, modelName);
 			double accuracy = learner.measureAccuracy(features, labels, confusion);
 			System.out.println("Training set accuracy: " + accuracy);
 			if(printConfusionMatrix) {
@@ -97,15 +113,17 @@ public class MLSystemManager {
 		else if (evalMethod.equals("static"))
 		{
 			Matrix testData = new Matrix();
-			testData.loadArff(evalParameter);
+			testData.setColumnar(columnar);
+			testData.setSinglePrecision(singlePrecision);
+			testData.load(evalParameter);
 			if (normalize)
 				testData.normalize(); // BUG! This may normalize differently from the training data. It should use the same ranges for normalization!
 
 			System.out.println("Calculating accuracy on separate test set...");
 			System.out.println("Test set name: " + evalParameter);
 			System.out.println("Number of test instances: " + testData.rows());
-			Matrix features = new Matrix(data, 0, 0, data.rows(), data.cols() - 1);
-			Matrix labels = new Matrix(data, 0, data.cols() - 1, data.rows(), 1);
+			Matrix features = data.view(0, 0, data.rows(), data.cols() - 1);
+			Matrix labels = data.view(0, data.cols() - 1, data.rows(), 1);
 			for (int i = 1; i < 15; i += 2)
 			{
 				double startTime = System.currentTimeMillis();
@@ -115,8 +133,8 @@ public class MLSystemManager {
 				System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
 //				double trainAccuracy = learner.measureAccuracy(features, labels, null);
 //				System.out.println("Training set accuracy: " + trainAccuracy);
-				Matrix testFeatures = new Matrix(testData, 0, 0, testData.rows(), testData.cols() - 1);
-				Matrix testLabels = new Matrix(testData, 0, testData.cols() - 1, testData.rows(), 1);
+				Matrix testFeatures = testData.view(0, 0, testData.rows(), testData.cols() - 1);
+				Matrix testLabels = testData.view(0, testData.cols() - 1, testData.rows(), 1);
 				Matrix confusion = new Matrix();
 
 //				double mse = 0;
@@ -152,10 +170,10 @@ public class MLSystemManager {
 			System.out.println("Percentage used for testing: " + (1 - trainPercent));
 			data.shuffle(rand);
 			int trainSize = (int)(trainPercent * data.rows());
-			Matrix trainFeatures = new Matrix(data, 0, 0, trainSize, data.cols() - 1);
-			Matrix trainLabels = new Matrix(data, 0, data.cols() - 1, trainSize, 1);
-			Matrix testFeatures = new Matrix(data, trainSize, 0, data.rows() - trainSize, data.cols() - 1);
-			Matrix testLabels = new Matrix(data, trainSize, data.cols() - 1, data.rows() - trainSize, 1);
+			Matrix trainFeatures = data.view(0, 0, trainSize, data.cols() - 1);
+			Matrix trainLabels = data.view(0, data.cols() - 1, trainSize, 1);
+			Matrix testFeatures = data.view(trainSize, 0, data.rows() - trainSize, data.cols() - 1);
+			Matrix testLabels = data.view(trainSize, data.cols() - 1, data.rows() - trainSize, 1);
 
 
 
@@ -172,6 +190,8 @@ public class MLSystemManager {
 					learner.train(trainFeatures, trainLabels);
 					double elapsedTime = System.currentTimeMillis() - startTime;
 					System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
+					if (modelName != null)
+						saveModel(learner, trainFeatures, trainLabels, modelName);
 					double trainAccuracy = learner.measureAccuracy(trainFeatures, trainLabels, null);
 					System.out.println("Training set accuracy: " + trainAccuracy);
 					Matrix confusion = new Matrix();
@@ -211,10 +231,10 @@ public class MLSystemManager {
 				for (int i = 0; i < folds; i++) {
 					int begin = i * data.rows() / folds;
 					int end = (i + 1) * data.rows() / folds;
-					Matrix trainFeatures = new Matrix(data, 0, 0, begin, data.cols() - 1);
-					Matrix trainLabels = new Matrix(data, 0, data.cols() - 1, begin, 1);
-					Matrix testFeatures = new Matrix(data, begin, 0, end - begin, data.cols() - 1);
-					Matrix testLabels = new Matrix(data, begin, data.cols() - 1, end - begin, 1);
+					Matrix trainFeatures = data.view(0, 0, begin, data.cols() - 1);
+					Matrix trainLabels = data.view(0, data.cols() - 1, begin, 1);
+					Matrix testFeatures = data.view(begin, 0, end - begin, data.cols() - 1);
+					Matrix testLabels = data.view(begin, data.cols() - 1, end - begin, 1);
 					trainFeatures.add(data, end, 0, data.rows() - end);
 					trainLabels.add(data, end, data.cols() - 1, data.rows() - end);
 					double startTime = System.currentTimeMillis();
@@ -242,6 +262,14 @@ public class MLSystemManager {
 		fileWriter.close();
 	}
 
+	private void saveModel(SupervisedLearner learner, Matrix features, Matrix labels, String modelName) throws Exception
+	{
+		double startTime = System.currentTimeMillis();
+		ModelFile.save(learner, features, labels, modelName);
+		double elapsedTime = System.currentTimeMillis() - startTime;
+		System.out.println("Saved the model to " + modelName + " (in seconds): " + elapsedTime / 1000.0);
+	}
+
 	/**
 	 * Class for parsing out the command line arguments
 	 */
@@ -253,6 +281,10 @@ public class MLSystemManager {
 		String evalExtra;
 		boolean verbose;
 		boolean normalize;
+		boolean columnar;
+		boolean singlePrecision;
+		String output;
+		String model;
 
 		//You can add more options for specific learning models if you wish
 		public ArgParser(String[] argv) {
@@ -267,6 +299,22 @@ public class MLSystemManager {
 			 		else if (argv[i].equals("-N"))
 			 		{
 			 			normalize = true;
+			 		}
+			 		else if (argv[i].equals("-C"))
+			 		{
+			 			columnar = true;
+			 		}
+			 		else if (argv[i].equals("-F"))
+			 		{
+			 			singlePrecision = true;
+			 		}
+			 		else if (argv[i].equals("-O"))
+			 		{
+			 			output = argv[++i];
+			 		}
+			 		else if (argv[i].equals("-M"))
+			 		{
+			 			model = argv[++i];
 			 		}
 						else if (argv[i].equals("-A"))
 						{
@@ -330,6 +378,10 @@ public class MLSystemManager {
 					System.out.println("OPTIONS:");
 					System.out.println("-V Print the confusion matrix and learner accuracy on individual class values");
 					System.out.println("-N Use normalized data");
+					System.out.println("-C Store the data by column");
+					System.out.println("-F Store the data in single precision (by column)");
+					System.out.println("-O [Output_File] Save the (normalized) data as ARFF, or as CSV or binary if the name ends in .csv or .bin");
+					System.out.println("-M [Model_File] Save the trained model (training and random evaluation), to be loaded with ModelFile");
 					System.out.println();
 					System.out.println("Possible evaluation methods are:");
 					System.out.println("MLSystemManager -L [learningAlgorithm] -A [ARFF_File] -E training");
@@ -347,6 +399,10 @@ public class MLSystemManager {
 		public String getEvalParameter() { return evalExtra; }
 		public boolean getVerbose() { return verbose; } 
 		public boolean getNormalize() { return normalize; }
+		public boolean getColumnar() { return columnar; }
+		public boolean getSinglePrecision() { return singlePrecision; }
+		public String getOutput() { return output; }
+		public String getModel() { return model; }
 	}
 
 	public static void main(String[] args) throws Exception
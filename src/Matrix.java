@@ -4,24 +4,63 @@
 // ----------------------------------------------------------------
 
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.TreeMap;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Iterator;
-import java.io.File;
+import java.util.concurrent.ForkJoinPool;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.lang.Exception;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
 public class Matrix
 {
     // Data
-    ArrayList<double[]> m_data;
+    ArrayList<double[]> m_data;     // row storage, one array per instance
+    Column[] m_columns;             // columnar storage, one array per attribute
+    ArrayList<SparseRow> m_sparseRows; // sparse row storage, the non-zero values of each instance
+    int m_rows;                     // number of rows when columnar or indexed
+    boolean m_columnar;
+    boolean m_sparse;               // rows are stored as their non-zero values
+    boolean m_single;               // columnar storage keeps continuous values as floats
+
+    // Views. A matrix may address its storage through a row index and a column
+    // offset instead of owning it outright; views made with view() share the
+    // storage of the matrix they came from.
+    int[] m_rowIndex;               // storage row of each row, or null for the identity
+    int m_colOffset;                // storage column of column 0
+    boolean m_view;                 // true if the storage belongs to another matrix
+
+    // Missing values. m_missing[c] marks the storage rows whose value in storage
+    // column c is MISSING. Each bitmap is built the first time it is asked for and
+    // is then kept up to date by set and addRow; views share them with their storage.
+    // Readers may build one at the same time, so a bitmap is only stored once it is
+    // complete, with a release write that their acquire reads pair with (see
+    // storageMissing); a reader never sees a half-built bitmap.
+    BitSet[] m_missing;
+    private static final VarHandle MISSING_ROWS = MethodHandles.arrayElementVarHandle(BitSet[].class);
+
+    // Column statistics. m_versions[c] counts the writes to storage column c and is
+    // shared with views, so a write through any of them makes the statistics each
+    // matrix has cached for that column stale. Appending rows updates them in place.
+    // The cached entries are immutable (final fields), so threads that only read a
+    // matrix may ask for statistics at the same time; at worst two of them compute
+    // the same entry. The missing-value bitmaps they scan are published safely too.
+    int[] m_versions;
+    private ColumnStats[] m_stats;
+    private ColumnMode[] m_modes;
 
     // Meta-data
     ArrayList<String> m_attr_name;
-    ArrayList<TreeMap<String, Integer>> m_str_to_enum;
-    ArrayList<TreeMap<Integer, String>> m_enum_to_str;
+    ArrayList<AttributeValues> m_attr_values;
 
     static double MISSING = Double.MAX_VALUE; // representation of missing values in the dataset
 
@@ -31,31 +70,102 @@ public class Matrix
     }
 
     // Copies the specified portion of that matrix into this matrix
+    // (this matrix uses the same storage layout as that matrix)
     public Matrix(Matrix that, int rowStart, int colStart, int rowCount, int colCount)
     {
-        m_data = new ArrayList<double[]>();
-        for (int j = 0; j < rowCount; j++)
+        copyMetaData(that, colStart, colCount);
+        m_columnar = that.m_columnar;
+        m_single = that.m_single;
+        m_sparse = that.m_sparse;
+        if (m_columnar)
         {
-            double[] rowSrc = that.row(rowStart + j);
-            double[] rowDest = new double[colCount];
+            m_rows = rowCount;
+            m_columns = new Column[colCount];
             for (int i = 0; i < colCount; i++)
             {
-                rowDest[i] = rowSrc[colStart + i];
+                double[] values = new double[Math.max(rowCount, 16)];
+                for (int j = 0; j < rowCount; j++)
+                {
+                    values[j] = that.get(rowStart + j, colStart + i);
+                }
+                m_columns[i] = Column.of(values, rowCount, valueCount(i), m_single);
+            }
+        }
+        else if (m_sparse)
+        {
+            m_sparseRows = new ArrayList<SparseRow>(rowCount);
+            for (int j = 0; j < rowCount; j++)
+            {
+                m_sparseRows.add(that.sparseRow(rowStart + j).slice(that.m_colOffset + colStart, colCount));
             }
-            m_data.add(rowDest);
         }
+        else
+        {
+            m_data = new ArrayList<double[]>();
+            for (int j = 0; j < rowCount; j++)
+            {
+                double[] rowDest = new double[colCount];
+                for (int i = 0; i < colCount; i++)
+                {
+                    rowDest[i] = that.get(rowStart + j, colStart + i);
+                }
+                m_data.add(rowDest);
+            }
+        }
+        m_missing = new BitSet[colCount];
+        m_versions = new int[colCount];
+    }
+
+    // Makes this matrix a view of the specified rows and columns of that matrix.
+    // Nothing is copied: the view shares that matrix's storage, so writes through
+    // either one are visible in both. Shuffling or adding rows to the view only
+    // changes the view.
+    public Matrix(Matrix that, int[] rows, int colStart, int colCount)
+    {
+        m_data = that.m_data;
+        m_columns = that.m_columns;
+        m_sparseRows = that.m_sparseRows;
+        m_columnar = that.m_columnar;
+        m_single = that.m_single;
+        m_sparse = that.m_sparse;
+        m_rows = rows.length;
+        m_rowIndex = new int[Math.max(rows.length, 16)];
+        for (int j = 0; j < rows.length; j++)
+        {
+            m_rowIndex[j] = that.storageRow(rows[j]);
+        }
+        m_colOffset = that.m_colOffset + colStart;
+        m_view = true;
+        m_missing = that.m_missing;
+        m_versions = that.m_versions;
+        copyMetaData(that, colStart, colCount);
+    }
+
+    // Returns a view of the specified portion of this matrix (see the view constructor)
+    public Matrix view(int rowStart, int colStart, int rowCount, int colCount)
+    {
+        int[] rows = new int[rowCount];
+        for (int j = 0; j < rowCount; j++)
+        {
+            rows[j] = rowStart + j;
+        }
+        return new Matrix(this, rows, colStart, colCount);
+    }
+
+    private void copyMetaData(Matrix that, int colStart, int colCount)
+    {
         m_attr_name = new ArrayList<String>();
-        m_str_to_enum = new ArrayList<TreeMap<String, Integer>>();
-        m_enum_to_str = new ArrayList<TreeMap<Integer, String>>();
+        m_attr_values = new ArrayList<AttributeValues>();
         for (int i = 0; i < colCount; i++)
         {
             m_attr_name.add(that.attrName(colStart + i));
-            m_str_to_enum.add(that.m_str_to_enum.get(colStart + i));
-            m_enum_to_str.add(that.m_enum_to_str.get(colStart + i));
+            m_attr_values.add(that.m_attr_values.get(colStart + i));
         }
     }
 
-    // Adds a copy of the specified portion of that matrix to this matrix
+    // Adds a copy of the specified portion of that matrix to this matrix. If this
+    // matrix is a view of the same storage, the rows are added to the view
+    // without copying.
     public void add(Matrix that, int rowStart, int colStart, int rowCount) throws Exception
     {
         if (colStart + cols() > that.cols())
@@ -69,176 +179,463 @@ public class Matrix
                 throw new Exception("incompatible relations");
             }
         }
+        boolean sameStorage = m_columnar ? m_columns == that.m_columns : m_sparse ? m_sparseRows == that.m_sparseRows : m_data == that.m_data;
+        if (m_view && sameStorage && m_colOffset == that.m_colOffset + colStart)
+        {
+            for (int j = 0; j < rowCount; j++)
+            {
+                appendIndex(that.storageRow(rowStart + j));
+            }
+            return;
+        }
         for (int j = 0; j < rowCount; j++)
         {
-            double[] rowSrc = that.row(rowStart + j);
             double[] rowDest = new double[cols()];
             for (int i = 0; i < cols(); i++)
             {
-                rowDest[i] = rowSrc[colStart + i];
+                rowDest[i] = that.get(rowStart + j, colStart + i);
             }
-            m_data.add(rowDest);
+            addRow(rowDest);
         }
     }
 
     // Resizes this matrix (and sets all attributes to be continuous)
     public void setSize(int rows, int cols)
     {
-        m_data = new ArrayList<double[]>();
-        for (int j = 0; j < rows; j++)
-        {
-            double[] row = new double[cols];
-            m_data.add(row);
-        }
+        setSize(rows, cols, m_columnar);
+    }
+
+    // Resizes this matrix using either row or columnar storage
+    public void setSize(int rows, int cols, boolean columnar)
+    {
+        m_columnar = columnar;
+        m_single = m_single && columnar;
+        m_sparse = m_sparse && !columnar;
         m_attr_name = new ArrayList<String>();
-        m_str_to_enum = new ArrayList<TreeMap<String, Integer>>();
-        m_enum_to_str = new ArrayList<TreeMap<Integer, String>>();
+        m_attr_values = new ArrayList<AttributeValues>();
         for (int i = 0; i < cols; i++)
         {
             m_attr_name.add("");
-            m_str_to_enum.add(new TreeMap<String, Integer>());
-            m_enum_to_str.add(new TreeMap<Integer, String>());
+            m_attr_values.add(new AttributeValues());
         }
+        initStorage(rows, cols);
     }
 
-    // Loads from an ARFF file
-    public void loadArff(String filename) throws Exception, FileNotFoundException
+    // Allocates zero-filled storage for the given shape in the current layout.
+    // In columnar mode nominal attributes get byte or short columns.
+    private void initStorage(int rows, int cols)
     {
-        m_data = new ArrayList<double[]>();
-        m_attr_name = new ArrayList<String>();
-        m_str_to_enum = new ArrayList<TreeMap<String, Integer>>();
-        m_enum_to_str = new ArrayList<TreeMap<Integer, String>>();
-        boolean READDATA = false;
-        Scanner s = new Scanner(new File(filename));
-        while (s.hasNext())
+        m_rowIndex = null;
+        m_colOffset = 0;
+        m_view = false;
+        m_missing = new BitSet[cols];
+        m_versions = new int[cols];
+        m_stats = null;
+        m_modes = null;
+        if (m_columnar)
         {
-            String line = s.nextLine().trim();
-            if (line.length() > 0 && line.charAt(0) != '%')
+            m_data = null;
+            m_sparseRows = null;
+            m_rows = rows;
+            m_columns = new Column[cols];
+            for (int i = 0; i < cols; i++)
             {
-                if (!READDATA)
-                {
+                m_columns[i] = Column.create(valueCount(i), rows, m_single);
+            }
+        }
+        else if (m_sparse)
+        {
+            m_data = null;
+            m_columns = null;
+            m_sparseRows = new ArrayList<SparseRow>();
+            for (int j = 0; j < rows; j++)
+            {
+                m_sparseRows.add(new SparseRow());
+            }
+        }
+        else
+        {
+            m_columns = null;
+            m_sparseRows = null;
+            m_data = new ArrayList<double[]>();
+            for (int j = 0; j < rows; j++)
+            {
+                m_data.add(new double[cols]);
+            }
+        }
+    }
 
-                    Scanner t = new Scanner(line);
-                    String firstToken = t.next().toUpperCase();
+    // Takes ownership of the given columns as this matrix's storage
+    void setColumns(Column[] columns, int rows)
+    {
+        m_columnar = true;
+        m_sparse = false;
+        m_data = null;
+        m_sparseRows = null;
+        m_columns = columns;
+        m_rows = rows;
+        m_rowIndex = null;
+        m_colOffset = 0;
+        m_view = false;
+        m_missing = new BitSet[columns.length];
+        m_versions = new int[columns.length];
+        m_stats = null;
+        m_modes = null;
+    }
 
-                    if (firstToken.equals("@RELATION"))
-                    {
-                        String datasetName = t.nextLine();
-                    }
+    // Switches between row storage and columnar storage, keeping the contents.
+    // Columnar storage makes column scans (min, max, mean, normalize) walk a
+    // single primitive array, at the cost of row(r) returning a copy.
+    public void setColumnar(boolean columnar)
+    {
+        if (columnar == m_columnar)
+        {
+            return;
+        }
+        if (m_attr_name == null)
+        {
+            // nothing loaded yet, so just remember the layout
+            m_columnar = columnar;
+            m_single = m_single && columnar;
+            m_sparse = m_sparse && !columnar;
+            return;
+        }
+        relayout(columnar, false);
+    }
 
-                    if (firstToken.equals("@ATTRIBUTE"))
-                    {
-                        TreeMap<String, Integer> ste = new TreeMap<String, Integer>();
-                        m_str_to_enum.add(ste);
-                        TreeMap<Integer, String> ets = new TreeMap<Integer, String>();
-                        m_enum_to_str.add(ets);
-
-                        Scanner u = new Scanner(line);
-                        if (line.indexOf("'") != -1)
-                        {
-                            u.useDelimiter("'");
-                        }
-                        u.next();
-                        String attributeName = u.next();
-                        if (line.indexOf("'") != -1)
-                        {
-                            attributeName = "'" + attributeName + "'";
-                        }
-                        m_attr_name.add(attributeName);
-
-                        int vals = 0;
-                        String type = u.next().trim().toUpperCase();
-                        if (type.equals("REAL") || type.equals("CONTINUOUS") || type.equals("INTEGER"))
-                        {
-                        }
-                        else
-                        {
-                            try
-                            {
-                                String values = line.substring(line.indexOf("{") + 1, line.indexOf("}"));
-                                Scanner v = new Scanner(values);
-                                v.useDelimiter(",");
-                                while (v.hasNext())
-                                {
-                                    String value = v.next().trim();
-                                    if (value.length() > 0)
-                                    {
-                                        ste.put(value, new Integer(vals));
-                                        ets.put(new Integer(vals), value);
-                                        vals++;
-                                    }
-                                }
-                            }
-                            catch (Exception e)
-                            {
-                                throw new Exception("Error parsing line: " + line + "\n" + e.toString());
-                            }
-                        }
-                    }
-                    if (firstToken.equals("@DATA"))
-                    {
-                        READDATA = true;
-                    }
+    // Switches between dense and sparse row storage, keeping the contents. Sparse
+    // storage keeps only the non-zero values of each row, and kernels that find it
+    // skip the zeros (see nonZeros). Sparse storage is never columnar.
+    public void setSparse(boolean sparse)
+    {
+        if (sparse == m_sparse)
+        {
+            return;
+        }
+        if (m_attr_name == null)
+        {
+            m_sparse = sparse;
+            m_columnar = m_columnar && !sparse;
+            m_single = m_single && !sparse;
+            return;
+        }
+        relayout(false, sparse);
+    }
+
+    // Switches continuous attributes between double and float storage, keeping the
+    // contents (rounded to float). Single precision storage is always columnar, and
+    // learners that find it use their float kernels.
+    public void setSinglePrecision(boolean single)
+    {
+        if (single == m_single)
+        {
+            return;
+        }
+        m_single = single;
+        if (m_attr_name == null)
+        {
+            m_columnar = m_columnar || single;
+            m_sparse = m_sparse && !single;
+            return;
+        }
+        relayout(true, false);
+    }
+
+    // Copies the rows of this matrix into new storage of its own in the given
+    // layout, so it no longer depends on a row index or on another matrix
+    private void relayout(boolean columnar, boolean sparse)
+    {
+        int rows = rows();
+        int cols = cols();
+        if (columnar)
+        {
+            Column[] columns = new Column[cols];
+            for (int i = 0; i < cols; i++)
+            {
+                double[] values = new double[Math.max(rows, 16)];
+                for (int j = 0; j < rows; j++)
+                {
+                    values[j] = get(j, i);
                 }
-                else
+                columns[i] = Column.of(values, rows, valueCount(i), m_single);
+            }
+            setColumns(columns, rows);
+            return;
+        }
+        if (sparse)
+        {
+            ArrayList<SparseRow> sparseRows = new ArrayList<SparseRow>(rows);
+            for (int j = 0; j < rows; j++)
+            {
+                sparseRows.add(m_sparse ? sparseRow(j).slice(m_colOffset, cols) : SparseRow.of(row(j)));
+            }
+            m_data = null;
+            m_sparseRows = sparseRows;
+        }
+        else
+        {
+            ArrayList<double[]> data = new ArrayList<double[]>(rows);
+            for (int j = 0; j < rows; j++)
+            {
+                double[] row = new double[cols];
+                for (int i = 0; i < cols; i++)
                 {
-                    double[] newrow = new double[cols()];
-                    int curPos = 0;
+                    row[i] = get(j, i);
+                }
+                data.add(row);
+            }
+            m_data = data;
+            m_sparseRows = null;
+        }
+        m_columnar = false;
+        m_single = false;
+        m_sparse = sparse;
+        m_columns = null;
+        m_rowIndex = null;
+        m_colOffset = 0;
+        m_view = false;
+        m_missing = new BitSet[cols];
+        m_versions = new int[cols];
+        m_stats = null;
+        m_modes = null;
+    }
 
-                    try
-                    {
-                        Scanner t = new Scanner(line);
-                        t.useDelimiter(",");
-                        while (t.hasNext())
-                        {
-                            String textValue = t.next().trim();
-                            //System.out.println(textValue);
-
-                            if (textValue.length() > 0)
-                            {
-                                double doubleValue;
-                                int vals = m_enum_to_str.get(curPos).size();
-
-                                //Missing instances appear in the dataset as a double defined as MISSING
-                                if (textValue.equals("?"))
-                                {
-                                    doubleValue = MISSING;
-                                }
-                                // Continuous values appear in the instance vector as they are
-                                else if (vals == 0)
-                                {
-                                    doubleValue = Double.parseDouble(textValue);
-                                }
-                                // Discrete values appear as an index to the "name"
-                                // of that value in the "attributeValue" structure
-                                else
-                                {
-                                    doubleValue = m_str_to_enum.get(curPos).get(textValue);
-                                    if (doubleValue == -1)
-                                    {
-                                        throw new Exception("Error parsing the value '" + textValue + "' on line: " + line);
-                                    }
-                                }
-
-                                newrow[curPos] = doubleValue;
-                                curPos++;
-                            }
-                        }
-                    }
-                    catch (Exception e)
-                    {
-                        throw new Exception("Error parsing line: " + line + "\n" + e.toString());
-                    }
-                    m_data.add(newrow);
+    // Removes all the rows, keeping the attributes. A view gets empty storage of its own.
+    void clearRows()
+    {
+        initStorage(0, cols());
+    }
+
+    // Returns true if this matrix stores its values by column
+    boolean isColumnar()
+    {
+        return m_columnar;
+    }
+
+    // Returns true if this matrix stores each row as its non-zero values
+    boolean isSparse()
+    {
+        return m_sparse;
+    }
+
+    // Returns true if this matrix stores its continuous values as floats
+    boolean isSinglePrecision()
+    {
+        return m_single;
+    }
+
+    // Returns true if this matrix shares the storage of another matrix
+    boolean isView()
+    {
+        return m_view;
+    }
+
+    // Appends a row to this matrix. The array becomes part of the matrix in row mode.
+    // A view is first given storage of its own, so the matrix it came from is untouched.
+    void addRow(double[] row)
+    {
+        if (m_view)
+        {
+            relayout(m_columnar, m_sparse);
+        }
+        int storageRow;
+        if (m_columnar)
+        {
+            storageRow = m_columns.length > 0 ? m_columns[0].size() : m_rows;
+            for (int i = 0; i < m_columns.length; i++)
+            {
+                if (!m_columns[i].accepts(row[i]))
+                {
+                    m_columns[i] = m_columns[i].widen();
                 }
+                m_columns[i].add(row[i]);
+            }
+        }
+        else if (m_sparse)
+        {
+            storageRow = m_sparseRows.size();
+            m_sparseRows.add(SparseRow.of(row));
+        }
+        else
+        {
+            storageRow = m_data.size();
+            m_data.add(row);
+        }
+        for (int i = 0; i < m_missing.length; i++)
+        {
+            if (m_missing[i] != null && row[i] == MISSING)
+            {
+                m_missing[i].set(storageRow);
             }
         }
+        rowStored(storageRow);
+    }
+
+    // Appends a row given by its non-zero values. The row becomes part of the matrix
+    // in sparse storage; other layouts store a dense copy.
+    void addRow(SparseRow row)
+    {
+        if (m_view)
+        {
+            relayout(m_columnar, m_sparse);
+        }
+        if (!m_sparse)
+        {
+            double[] dense = new double[cols()];
+            row.toDense(0, dense);
+            addRow(dense);
+            return;
+        }
+        int storageRow = m_sparseRows.size();
+        m_sparseRows.add(row);
+        for (int k = 0; k < row.size(); k++)
+        {
+            BitSet missing = m_missing[row.index(k)];
+            if (missing != null && row.value(k) == MISSING)
+            {
+                missing.set(storageRow);
+            }
+        }
+        rowStored(storageRow);
+    }
+
+    // Makes a row just added to the storage the last row of this matrix
+    private void rowStored(int storageRow)
+    {
+        if (m_rowIndex != null)
+        {
+            appendIndex(storageRow);
+        }
+        else
+        {
+            if (m_columnar)
+            {
+                m_rows++;
+            }
+            rowAdded();
+        }
+    }
+
+    // Adds a storage row to the end of the row index
+    private void appendIndex(int storageRow)
+    {
+        if (m_rowIndex == null)
+        {
+            buildIndex();
+        }
+        if (m_rows == m_rowIndex.length)
+        {
+            m_rowIndex = Arrays.copyOf(m_rowIndex, m_rowIndex.length * 2);
+        }
+        m_rowIndex[m_rows++] = storageRow;
+        rowAdded();
+    }
+
+    // Folds the last row into the cached statistics. The values are taken in row
+    // order, so the result is the same as scanning the column again.
+    private void rowAdded()
+    {
+        m_modes = null;
+        if (m_stats == null)
+        {
+            return;
+        }
+        int r = rows() - 1;
+        for (int i = 0; i < m_stats.length; i++)
+        {
+            ColumnStats stats = m_stats[i];
+            if (stats != null && stats.m_version == m_versions[m_colOffset + i])
+            {
+                m_stats[i] = stats.add(get(r, i));
+            }
+        }
+    }
+
+    // Replaces the implicit identity row order with an explicit row index
+    private void buildIndex()
+    {
+        int rows = rows();
+        m_rowIndex = new int[Math.max(rows, 16)];
+        for (int j = 0; j < rows; j++)
+        {
+            m_rowIndex[j] = j;
+        }
+        m_rows = rows;
+    }
+
+    // Returns the storage row that holds the specified row
+    int storageRow(int r)
+    {
+        return m_rowIndex == null ? r : m_rowIndex[r];
+    }
+
+    // Loads from either an ARFF file or a BinaryDataset file
+    public void load(String filename) throws Exception
+    {
+        if (BinaryDataset.isBinary(filename))
+        {
+            loadBinary(filename);
+        }
+        else
+        {
+            loadArff(filename, true);
+        }
+    }
+
+    // Memory-maps a BinaryDataset file. The matrix is left in columnar mode
+    // with its columns backed by the file rather than copied onto the heap,
+    // unless it is in single precision, which needs the values as floats.
+    public void loadBinary(String filename) throws Exception
+    {
+        BinaryDataset.load(this, filename);
+        if (m_single)
+        {
+            relayout(true, false);
+        }
+    }
+
+    // Loads from an ARFF file, which may be gzip-compressed
+    public void loadArff(String filename) throws Exception, FileNotFoundException
+    {
+        loadArff(filename, false);
+    }
+
+    // Loads from an ARFF file, optionally parsing the data section on all cores.
+    // Both ways produce the same matrix.
+    public void loadArff(String filename, boolean parallel) throws Exception, FileNotFoundException
+    {
+        m_attr_name = new ArrayList<String>();
+        m_attr_values = new ArrayList<AttributeValues>();
+        ArffReader reader = new ArffReader(filename);
+        try
+        {
+            reader.readHeader(m_attr_name, m_attr_values);
+            // a sparse data section loads into sparse rows, unless columns were asked for
+            m_sparse = !m_columnar && reader.isSparse();
+            initStorage(0, cols());
+            if (parallel)
+            {
+                reader.readDataParallel(this, ForkJoinPool.commonPool());
+            }
+            else
+            {
+                reader.readData(this);
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
     }
 
     // Returns the number of rows in the matrix
     int rows()
     {
-        return m_data.size();
+        if (m_columnar || m_rowIndex != null)
+        {
+            return m_rows;
+        }
+        return m_sparse ? m_sparseRows.size() : m_data.size();
     }
 
     // Returns the number of columns (or attributes) in the matrix
@@ -247,22 +644,225 @@ public class Matrix
         return m_attr_name.size();
     }
 
-    // Returns the specified row
+    // Returns the specified row. In columnar mode, or when this matrix covers only
+    // some of the columns of its storage, this is a copy, so writes to it do not
+    // reach the matrix. Otherwise writes to it are not tracked as missing or present.
+    // Use set instead. Loops over many rows should use row(r, buffer), which does
+    // not allocate a copy per row.
     double[] row(int r)
     {
-        return m_data.get(r);
+        return row(r, null);
+    }
+
+    // Returns the specified row as row(r) does, except that where row(r) would return
+    // a copy the values are copied into buffer (an array of cols() values, or null to
+    // allocate one) and buffer is returned
+    double[] row(int r, double[] buffer)
+    {
+        int sr = storageRow(r);
+        if (!m_columnar && !m_sparse)
+        {
+            double[] row = m_data.get(sr);
+            if (m_colOffset == 0 && row.length == cols())
+            {
+                return row;
+            }
+        }
+        double[] row = buffer != null ? buffer : new double[cols()];
+        if (m_columnar)
+        {
+            for (int i = 0; i < cols(); i++)
+            {
+                row[i] = m_columns[m_colOffset + i].get(sr);
+            }
+        }
+        else if (m_sparse)
+        {
+            m_sparseRows.get(sr).toDense(m_colOffset, row);
+        }
+        else
+        {
+            System.arraycopy(m_data.get(sr), m_colOffset, row, 0, cols());
+        }
+        return row;
     }
 
     // Returns the element at the specified row and column
     double get(int r, int c)
     {
-        return m_data.get(r)[c];
+        if (m_columnar)
+        {
+            return m_columns[m_colOffset + c].get(storageRow(r));
+        }
+        if (m_sparse)
+        {
+            return m_sparseRows.get(storageRow(r)).get(m_colOffset + c);
+        }
+        return m_data.get(storageRow(r))[m_colOffset + c];
+    }
+
+    // Copies the non-zero values of the specified row into the arrays, in column
+    // order, and returns how many there are. Kernels use this to skip the zeros of
+    // sparse rows; it takes time in proportion to the non-zeros in sparse storage
+    // and to the columns otherwise. Each array needs room for cols() values.
+    int nonZeros(int r, int[] indices, double[] values)
+    {
+        if (m_sparse)
+        {
+            return sparseRow(r).copyRange(m_colOffset, cols(), indices, values);
+        }
+        int n = 0;
+        for (int i = 0; i < cols(); i++)
+        {
+            double v = get(r, i);
+            if (v != 0)
+            {
+                indices[n] = i;
+                values[n] = v;
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // Returns the sparse storage row that holds the specified row
+    private SparseRow sparseRow(int r)
+    {
+        return m_sparseRows.get(storageRow(r));
     }
 
     // Sets the value at the specified row and column
     void set(int r, int c, double v)
     {
-        row(r)[c] = v;
+        int sr = storageRow(r);
+        int sc = m_colOffset + c;
+        if (m_columnar)
+        {
+            Column column = m_columns[sc];
+            if (!column.accepts(v))
+            {
+                // not a code of this nominal column; views see the widened column too
+                column = column.widen();
+                m_columns[sc] = column;
+            }
+            column.set(sr, v);
+        }
+        else if (m_sparse)
+        {
+            m_sparseRows.get(sr).set(sc, v);
+        }
+        else
+        {
+            m_data.get(sr)[sc] = v;
+        }
+        BitSet missing = m_missing[sc];
+        if (missing != null)
+        {
+            missing.set(sr, v == MISSING);
+        }
+        m_versions[sc]++;
+    }
+
+    // Returns true if any row of the specified column is missing its value
+    boolean columnHasMissing(int col)
+    {
+        BitSet missing = storageMissing(m_colOffset + col);
+        if (missing.isEmpty())
+        {
+            return false;
+        }
+        if (m_rowIndex == null)
+        {
+            return true;
+        }
+        for (int r = 0; r < m_rows; r++)
+        {
+            if (missing.get(m_rowIndex[r]))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns the rows of the specified column that are missing their value
+    BitSet missingRows(int col)
+    {
+        BitSet missing = storageMissing(m_colOffset + col);
+        if (m_rowIndex == null)
+        {
+            return (BitSet) missing.clone();
+        }
+        BitSet rows = new BitSet();
+        if (!missing.isEmpty())
+        {
+            for (int r = 0; r < m_rows; r++)
+            {
+                if (missing.get(m_rowIndex[r]))
+                {
+                    rows.set(r);
+                }
+            }
+        }
+        return rows;
+    }
+
+    // Returns the missing-value bitmap of the specified storage column, building it
+    // with one scan the first time it is needed. Threads that only read the matrix may
+    // call this at once: each that finds no bitmap builds its own and publishes it
+    // with a release write, and the acquire read sees either null or a whole bitmap.
+    private BitSet storageMissing(int sc)
+    {
+        BitSet missing = (BitSet) MISSING_ROWS.getAcquire(m_missing, sc);
+        if (missing == null)
+        {
+            missing = new BitSet();
+            if (m_columnar)
+            {
+                Column column = m_columns[sc];
+                int size = column.size();
+                for (int r = 0; r < size; r++)
+                {
+                    if (column.get(r) == MISSING)
+                    {
+                        missing.set(r);
+                    }
+                }
+            }
+            else if (m_sparse)
+            {
+                for (int r = 0; r < m_sparseRows.size(); r++)
+                {
+                    if (m_sparseRows.get(r).get(sc) == MISSING)
+                    {
+                        missing.set(r);
+                    }
+                }
+            }
+            else
+            {
+                for (int r = 0; r < m_data.size(); r++)
+                {
+                    if (m_data.get(r)[sc] == MISSING)
+                    {
+                        missing.set(r);
+                    }
+                }
+            }
+            MISSING_ROWS.setRelease(m_missing, sc, missing);
+        }
+        return missing;
+    }
+
+    // Returns the specified column. In columnar mode with rows in storage order this
+    // is the backing storage itself; otherwise it reads and writes through the matrix.
+    Column column(int c)
+    {
+        if (m_columnar && m_rowIndex == null)
+        {
+            return m_columns[m_colOffset + c];
+        }
+        return new MatrixColumn(c);
     }
 
     // Returns the name of the specified attribute
@@ -280,105 +880,207 @@ public class Matrix
     // Returns the name of the specified value
     String attrValue(int attr, int val)
     {
-        return m_enum_to_str.get(attr).get(val);
+        return m_attr_values.get(attr).get(val);
     }
 
     // Returns the number of values associated with the specified attribute (or column)
     // 0=continuous, 2=binary, 3=trinary, etc.
     int valueCount(int col)
     {
-        return m_enum_to_str.get(col).size();
+        return m_attr_values.get(col).size();
     }
 
-    // Shuffles the row order
+    // Shuffles the row order. Only the row index is permuted; the storage (which
+    // views may share) stays where it is.
     void shuffle(Random rand)
     {
+        if (m_rowIndex == null)
+        {
+            buildIndex();
+        }
         for (int n = rows(); n > 0; n--)
         {
             int i = rand.nextInt(n);
-            double[] tmp = row(n - 1);
-            m_data.set(n - 1, row(i));
-            m_data.set(i, tmp);
+            swapIndex(n - 1, i);
         }
     }
 
     // Shuffles the row order with a buddy matrix
     void shuffle(Random rand, Matrix buddy)
     {
+        if (m_rowIndex == null)
+        {
+            buildIndex();
+        }
+        if (buddy.m_rowIndex == null)
+        {
+            buddy.buildIndex();
+        }
         for (int n = rows(); n > 0; n--)
         {
             int i = rand.nextInt(n);
-            double[] tmp = row(n - 1);
-            m_data.set(n - 1, row(i));
-            m_data.set(i, tmp);
-
-
-            double[] tmp1 = buddy.row(n - 1);
-            buddy.m_data.set(n - 1, buddy.row(i));
-            buddy.m_data.set(i, tmp1);
+            swapIndex(n - 1, i);
+            buddy.swapIndex(n - 1, i);
         }
     }
 
+    private void swapIndex(int i, int j)
+    {
+        int tmp = m_rowIndex[i];
+        m_rowIndex[i] = m_rowIndex[j];
+        m_rowIndex[j] = tmp;
+    }
+
     // Returns the mean of the specified column
     double columnMean(int col)
     {
+        ColumnStats stats = stats(col);
+        return stats.m_sum / stats.m_count;
+    }
+
+    // Returns the min value in the specified column
+    double columnMin(int col)
+    {
+        return stats(col).m_min;
+    }
+
+    // Returns the max value in the specified column
+    double columnMax(int col)
+    {
+        return stats(col).m_max;
+    }
+
+    // Returns the cached statistics of the specified column, computing them with one
+    // pass over the column if there are none or they are stale
+    private ColumnStats stats(int col)
+    {
+        ColumnStats[] cache = m_stats;
+        if (cache == null)
+        {
+            cache = new ColumnStats[cols()];
+            m_stats = cache;
+        }
+        int version = m_versions[m_colOffset + col];
+        ColumnStats stats = cache[col];
+        if (stats == null || stats.m_version != version)
+        {
+            stats = computeStats(col, version);
+            cache[col] = stats;
+        }
+        return stats;
+    }
+
+    private ColumnStats computeStats(int col, int version)
+    {
+        double min = MISSING;
+        double max = MISSING;
         double sum = 0;
         int count = 0;
-        for (int i = 0; i < rows(); i++)
+        Column column = column(col);
+        int rows = rows();
+        if (rows > 0 && !columnHasMissing(col))
         {
-            double v = get(i, col);
-            if (v != MISSING)
+            min = column.get(0);
+            max = min;
+            for (int i = 0; i < rows; i++)
             {
+                double v = column.get(i);
                 sum += v;
-                count++;
+                if (v < min)
+                {
+                    min = v;
+                }
+                if (v > max)
+                {
+                    max = v;
+                }
             }
+            count = rows;
         }
-        return sum / count;
-    }
-
-    // Returns the min value in the specified column
-    double columnMin(int col)
-    {
-        double m = MISSING;
-        for (int i = 0; i < rows(); i++)
+        else
         {
-            double v = get(i, col);
-            if (v != MISSING)
+            for (int i = 0; i < rows; i++)
             {
-                if (m == MISSING || v < m)
+                double v = column.get(i);
+                if (v != MISSING)
                 {
-                    m = v;
+                    sum += v;
+                    count++;
+                    if (min == MISSING || v < min)
+                    {
+                        min = v;
+                    }
+                    if (max == MISSING || v > max)
+                    {
+                        max = v;
+                    }
                 }
             }
         }
-        return m;
+        return new ColumnStats(version, min, max, sum, count);
     }
 
-    // Returns the max value in the specified column
-    double columnMax(int col)
+    // Returns the most common value in the specified column
+    double mostCommonValue(int col)
     {
-        double m = MISSING;
-        for (int i = 0; i < rows(); i++)
+        ColumnMode[] cache = m_modes;
+        if (cache == null)
         {
-            double v = get(i, col);
-            if (v != MISSING)
+            cache = new ColumnMode[cols()];
+            m_modes = cache;
+        }
+        int version = m_versions[m_colOffset + col];
+        ColumnMode mode = cache[col];
+        if (mode == null || mode.m_version != version)
+        {
+            mode = new ColumnMode(version, computeMostCommonValue(col));
+            cache[col] = mode;
+        }
+        return mode.m_value;
+    }
+
+    private double computeMostCommonValue(int col)
+    {
+        Column column = column(col);
+        int rows = rows();
+        int vals = valueCount(col);
+        if (vals > 0)
+        {
+            // nominal values index straight into an array of counts
+            int[] counts = new int[vals];
+            for (int i = 0; i < rows; i++)
             {
-                if (m == MISSING || v > m)
+                double v = column.get(i);
+                if (!Column.isCode(v, vals - 1))
                 {
-                    m = v;
+                    return countMostCommonValue(column, rows);
+                }
+                if (v != MISSING)
+                {
+                    counts[(int) v]++;
                 }
             }
+            int maxCount = 0;
+            double val = MISSING;
+            for (int value = 0; value < vals; value++)
+            {
+                if (counts[value] > maxCount)
+                {
+                    maxCount = counts[value];
+                    val = value;
+                }
+            }
+            return val;
         }
-        return m;
+        return countMostCommonValue(column, rows);
     }
 
-    // Returns the most common value in the specified column
-    double mostCommonValue(int col)
+    private double countMostCommonValue(Column column, int rows)
     {
         TreeMap<Double, Integer> tm = new TreeMap<Double, Integer>();
-        for (int i = 0; i < rows(); i++)
+        for (int i = 0; i < rows; i++)
         {
-            double v = get(i, col);
+            double v = column.get(i);
             if (v != MISSING)
             {
                 Integer count = tm.get(v);
@@ -415,63 +1117,136 @@ public class Matrix
             {
                 double min = columnMin(i);
                 double max = columnMax(i);
-                for (int j = 0; j < rows(); j++)
+                Column column = column(i);
+                int rows = rows();
+                for (int j = 0; j < rows; j++)
                 {
-                    double v = get(j, i);
+                    double v = column.get(j);
                     if (v != MISSING)
                     {
-                        set(j, i, (v - min) / (max - min));
+                        column.set(j, (v - min) / (max - min));
                     }
                 }
+                // the column may have been written without going through set
+                m_versions[m_colOffset + i]++;
             }
         }
     }
 
-    void print()
+    // Writes this matrix to the stream in the given format (see DatasetWriter)
+    public void write(OutputStream out, DatasetWriter.Format format) throws IOException
+    {
+        DatasetWriter writer = new DatasetWriter(out);
+        writer.write(this, format);
+        writer.flush();
+    }
+
+    // Writes this matrix to the channel in the given format
+    public void write(WritableByteChannel out, DatasetWriter.Format format) throws IOException
     {
-        System.out.println("@RELATION Untitled");
-        for (int i = 0; i < m_attr_name.size(); i++)
+        DatasetWriter writer = new DatasetWriter(out);
+        writer.write(this, format);
+        writer.flush();
+    }
+
+    // Saves this matrix to the specified file, as CSV if its name ends in .csv, in
+    // the binary format if it ends in .bin, and as ARFF otherwise
+    public void save(String filename) throws IOException
+    {
+        FileChannel channel = new FileOutputStream(filename).getChannel();
+        try
         {
-            System.out.print("@ATTRIBUTE " + m_attr_name.get(i));
-            int vals = valueCount(i);
-            if (vals == 0)
-            {
-                System.out.println(" CONTINUOUS");
-            }
-            else
-            {
-                System.out.print(" {");
-                for (int j = 0; j < vals; j++)
-                {
-                    if (j > 0)
-                    {
-                        System.out.print(", ");
-                    }
-                    System.out.print(m_enum_to_str.get(i).get(j));
-                }
-                System.out.println("}");
-            }
+            write(channel, DatasetWriter.Format.of(filename));
         }
-        System.out.println("@DATA");
-        for (int i = 0; i < rows(); i++)
+        finally
         {
-            double[] r = row(i);
-            for (int j = 0; j < r.length; j++)
+            channel.close();
+        }
+    }
+
+    // Prints this matrix in ARFF format
+    void print() throws IOException
+    {
+        write(System.out, DatasetWriter.Format.ARFF);
+    }
+
+    // A single column read and written through the matrix
+    private class MatrixColumn extends Column
+    {
+        private int m_col;
+
+        private MatrixColumn(int col)
+        {
+            m_col = col;
+        }
+
+        int size()
+        {
+            return rows();
+        }
+
+        double get(int r)
+        {
+            return Matrix.this.get(r, m_col);
+        }
+
+        void set(int r, double v)
+        {
+            Matrix.this.set(r, m_col, v);
+        }
+
+        // Appends a row to the matrix, with v in this column and the other values
+        // missing
+        void add(double v)
+        {
+            double[] row = new double[cols()];
+            Arrays.fill(row, MISSING);
+            row[m_col] = v;
+            addRow(row);
+        }
+    }
+
+    // The min, max and sum of the known values of a column, as of one version of it
+    private static class ColumnStats
+    {
+        final int m_version;
+        final double m_min;
+        final double m_max;
+        final double m_sum;
+        final int m_count;
+
+        ColumnStats(int version, double min, double max, double sum, int count)
+        {
+            m_version = version;
+            m_min = min;
+            m_max = max;
+            m_sum = sum;
+            m_count = count;
+        }
+
+        // Returns these statistics with one more value appended to the column
+        ColumnStats add(double v)
+        {
+            if (v == MISSING)
             {
-                if (j > 0)
-                {
-                    System.out.print(", ");
-                }
-                if (valueCount(j) == 0)
-                {
-                    System.out.print(r[j]);
-                }
-                else
-                {
-                    System.out.print(m_enum_to_str.get(j).get((int) r[j]));
-                }
+                return this;
             }
-            System.out.println("");
+            double min = m_count == 0 || v < m_min ? v : m_min;
+            double max = m_count == 0 || v > m_max ? v : m_max;
+            return new ColumnStats(m_version, min, max, m_sum + v, m_count + 1);
+        }
+    }
+
+    // The most common value of a column, as of one version of it
+    private static class ColumnMode
+    {
+        final int m_version;
+        final double m_value;
+
+        ColumnMode(int version, double value)
+        {
+            m_version = version;
+            m_value = value;
         }
     }
 }
@@ -0,0 +1,363 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A versioned binary format for trained learners, so a model can be trained once
+ * and then loaded by any number of scoring processes without the training data.
+ *
+ * Layout:
+ *   int    magic ('A' 'R' 'F' 'M')
+ *   int    version
+ *   UTF    class name of the learner
+ *   int    length of the model block
+ *   model block: what the learner's writeModel wrote, little-endian, with arrays
+ *                stored as an int length and then their elements back to back
+ *   zero padding to an 8-byte boundary
+ *   datasets: the attributes of the features and of the labels the learner was
+ *             trained on (BinaryDataset files with no rows), then any datasets the
+ *             learner wrote (e.g. the instances kNN keeps), each padded to 8 bytes
+ *
+ * The header is big-endian, as in BinaryDataset. Arrays are read from the model
+ * block with one bulk copy each, and datasets are memory-mapped as BinaryDataset
+ * files are.
+ */
+public class ModelFile
+{
+    static final int MAGIC = 0x4152464D;
+    static final int VERSION = 1;
+
+    private SupervisedLearner m_learner;
+    private Matrix m_features;
+    private Matrix m_labels;
+
+    private ModelFile(SupervisedLearner learner, Matrix features, Matrix labels)
+    {
+        m_learner = learner;
+        m_features = features;
+        m_labels = labels;
+    }
+
+    // Returns the trained learner
+    public SupervisedLearner learner()
+    {
+        return m_learner;
+    }
+
+    // Returns the attributes of the features the learner was trained on, with no rows
+    public Matrix features()
+    {
+        return m_features;
+    }
+
+    // Returns the attributes of the labels, with their value names, with no rows
+    public Matrix labels()
+    {
+        return m_labels;
+    }
+
+    // Saves a trained learner along with the attributes of the features and labels
+    // it was trained on
+    public static void save(SupervisedLearner learner, Matrix features, Matrix labels, String filename) throws Exception
+    {
+        Output out = new Output();
+        out.writeDataset(new Matrix(features, 0, 0, 0, features.cols()));
+        out.writeDataset(new Matrix(labels, 0, 0, 0, labels.cols()));
+        learner.writeModel(out);
+        byte[] model = out.m_bytes.toByteArray();
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeUTF(learner.getClass().getName());
+        header.writeInt(model.length);
+        header.write(model);
+        header.flush();
+
+        FileChannel channel = new FileOutputStream(filename).getChannel();
+        try
+        {
+            drain(ByteBuffer.wrap(headerBytes.toByteArray()), channel);
+            pad(channel);
+            for (Matrix dataset : out.m_datasets)
+            {
+                BinaryDataset.write(dataset, channel);
+                pad(channel);
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private static void pad(FileChannel channel) throws IOException
+    {
+        long position = channel.position();
+        drain(ByteBuffer.allocate((int) (align(position) - position)), channel);
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    private static long align(long position)
+    {
+        return (position + 7) & ~7L;
+    }
+
+    // Loads a learner saved by save
+    public static ModelFile load(String filename) throws Exception
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        String className;
+        byte[] model;
+        long end;
+        try
+        {
+            if (in.readInt() != MAGIC)
+            {
+                throw new Exception("Not a model file: " + filename);
+            }
+            int version = in.readInt();
+            if (version != VERSION)
+            {
+                throw new Exception("Unsupported model file version " + version + " in " + filename);
+            }
+            className = in.readUTF();
+            model = new byte[in.readInt()];
+            in.readFully(model);
+            // magic, version, the class name, the block length and the block
+            end = 4 + 4 + utfLength(className) + 4 + model.length;
+        }
+        finally
+        {
+            in.close();
+        }
+
+        SupervisedLearner learner = create(className);
+        Input input = new Input(filename, ByteBuffer.wrap(model).order(ByteOrder.LITTLE_ENDIAN), align(end));
+        Matrix features = input.readDataset();
+        Matrix labels = input.readDataset();
+        learner.readModel(input);
+        return new ModelFile(learner, features, labels);
+    }
+
+    // Returns the number of bytes writeUTF writes for the string
+    private static int utfLength(String s) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(s);
+        return bytes.size();
+    }
+
+    // Creates an untrained learner of the named class, which takes a Random or nothing.
+    // The Random is only used to train, so it is not saved.
+    private static SupervisedLearner create(String className) throws Exception
+    {
+        Class<?> type = Class.forName(className);
+        if (!SupervisedLearner.class.isAssignableFrom(type))
+        {
+            throw new Exception("Not a learner: " + className);
+        }
+        try
+        {
+            return (SupervisedLearner) type.getConstructor(Random.class).newInstance(new Random());
+        }
+        catch (NoSuchMethodException e)
+        {
+            return (SupervisedLearner) type.getConstructor().newInstance();
+        }
+    }
+
+    /**
+     * What a learner writes its model to (see SupervisedLearner.writeModel).
+     */
+    static class Output
+    {
+        private ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+        private ByteBuffer m_scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        private ArrayList<Matrix> m_datasets = new ArrayList<Matrix>();
+
+        void writeBoolean(boolean v)
+        {
+            m_bytes.write(v ? 1 : 0);
+        }
+
+        void writeInt(int v)
+        {
+            m_scratch.clear();
+            m_scratch.putInt(v);
+            m_bytes.write(m_scratch.array(), 0, 4);
+        }
+
+        void writeDouble(double v)
+        {
+            m_scratch.clear();
+            m_scratch.putDouble(v);
+            m_bytes.write(m_scratch.array(), 0, 8);
+        }
+
+        // Writes the array, which may be null
+        void writeDoubles(double[] v)
+        {
+            writeInt(v == null ? -1 : v.length);
+            if (v != null)
+            {
+                ByteBuffer bytes = ByteBuffer.allocate(v.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+                bytes.asDoubleBuffer().put(v);
+                m_bytes.write(bytes.array(), 0, bytes.capacity());
+            }
+        }
+
+        // Writes the array, which may be null
+        void writeFloats(float[] v)
+        {
+            writeInt(v == null ? -1 : v.length);
+            if (v != null)
+            {
+                ByteBuffer bytes = ByteBuffer.allocate(v.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+                bytes.asFloatBuffer().put(v);
+                m_bytes.write(bytes.array(), 0, bytes.capacity());
+            }
+        }
+
+        void writeInts(int[] v)
+        {
+            writeInt(v.length);
+            ByteBuffer bytes = ByteBuffer.allocate(v.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.asIntBuffer().put(v);
+            m_bytes.write(bytes.array(), 0, bytes.capacity());
+        }
+
+        // Writes the attributes and rows of the matrix after the model block, in the
+        // BinaryDataset format, to be mapped when the model is loaded
+        void writeDataset(Matrix m)
+        {
+            m_datasets.add(m);
+        }
+    }
+
+    /**
+     * What a learner reads its model from (see SupervisedLearner.readModel), in the
+     * order it was written.
+     */
+    static class Input
+    {
+        private String m_filename;
+        private ByteBuffer m_model;
+        private long m_nextDataset;     // file position of the next dataset
+
+        private Input(String filename, ByteBuffer model, long firstDataset)
+        {
+            m_filename = filename;
+            m_model = model;
+            m_nextDataset = firstDataset;
+        }
+
+        boolean readBoolean()
+        {
+            return m_model.get() != 0;
+        }
+
+        int readInt()
+        {
+            return m_model.getInt();
+        }
+
+        double readDouble()
+        {
+            return m_model.getDouble();
+        }
+
+        // Reads an array written by writeDoubles, or null
+        double[] readDoubles()
+        {
+            int length = m_model.getInt();
+            if (length < 0)
+            {
+                return null;
+            }
+            double[] v = new double[length];
+            m_model.asDoubleBuffer().get(v);
+            m_model.position(m_model.position() + length * 8);
+            return v;
+        }
+
+        // Reads an array written by writeFloats, or null
+        float[] readFloats()
+        {
+            int length = m_model.getInt();
+            if (length < 0)
+            {
+                return null;
+            }
+            float[] v = new float[length];
+            m_model.asFloatBuffer().get(v);
+            m_model.position(m_model.position() + length * 4);
+            return v;
+        }
+
+        int[] readInts()
+        {
+            int[] v = new int[m_model.getInt()];
+            m_model.asIntBuffer().get(v);
+            m_model.position(m_model.position() + v.length * 4);
+            return v;
+        }
+
+        // Maps the next dataset written by writeDataset. The matrix is columnar and
+        // backed by the file.
+        Matrix readDataset() throws Exception
+        {
+            Matrix m = new Matrix();
+            m_nextDataset = align(BinaryDataset.load(m, m_filename, m_nextDataset));
+            return m;
+        }
+    }
+
+    // Loads a model and measures it on an ARFF file
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 2)
+        {
+            System.out.println("Usage:");
+            System.out.println("ModelFile [Model_File] [ARFF_File]");
+            System.exit(0);
+        }
+        double startTime = System.currentTimeMillis();
+        ModelFile model = load(args[0]);
+        double elapsedTime = System.currentTimeMillis() - startTime;
+        System.out.println("Loaded " + model.learner().getClass().getName() + " from " + args[0]);
+        System.out.println("Time to load (in seconds): " + elapsedTime / 1000.0);
+        Matrix data = new Matrix();
+        data.load(args[1]);
+        int featureCols = model.features().cols();
+        if (data.cols() != featureCols + model.labels().cols())
+        {
+            throw new Exception("Expected " + (featureCols + model.labels().cols()) + " attributes in " + args[1]);
+        }
+        Matrix features = data.view(0, 0, data.rows(), featureCols);
+        Matrix labels = data.view(0, featureCols, data.rows(), data.cols() - featureCols);
+        System.out.println("Accuracy: " + model.learner().measureAccuracy(features, labels, null));
+    }
+}
@@ -2,7 +2,7 @@ import java.io.*;
 import java.util.Arrays;
 import java.util.Random;
 
-public class NeuralNet extends SupervisedLearner
+public class NeuralNet extends SupervisedLearner implements StreamLearner
 {
     private Random rand;
     private int hiddenLayerSize;
@@ -15,6 +15,18 @@ public class NeuralNet extends SupervisedLearner
     private HiddenNode[][] hiddenLayers;
     private Writer fileWriter;
 
+    // rows per block in predictRange
+    private static final int PREDICT_BLOCK = 64;
+
+    // Squared error of the outputs over the current epoch
+    private double mseTrainSum;
+    private int mseTrainCount;
+
+    // Progress when training from a stream, one epoch per pass
+    private int streamPasses;
+    private int streamPassesWithoutImprovement;
+    private double streamBestMSE;
+
     public NeuralNet(Random rand)
     {
         this.rand = rand;
@@ -30,57 +42,59 @@ public class NeuralNet extends SupervisedLearner
     @Override
     public void train(Matrix inputs, Matrix targets) throws Exception
     {
-//        hiddenLayerSize = inputs.cols() * 2;
-        hiddenLayers = new HiddenNode[layers][hiddenLayerSize];
-        for (int i = 0; i < layers; i++)
-        {
-            hiddenLayers[i] = new HiddenNode[hiddenLayerSize];
-        }
-//        hiddenNodes = new HiddenNode[hiddenLayerSize];
-        TargetNode[] bestTargetNodes = targetNodes;
-//        HiddenNode[] bestHiddenNodes = hiddenNodes;
-        HiddenNode[][] bestHiddenLayers = hiddenLayers;
-        double bestVSAccuracy = 0.0;
-        double bestTrainMSE = 0.0;
-        double bestVSMSE = 0.0;
+        initNetwork(inputs.cols(), targets.valueCount(0));
+        fit(inputs, targets);
+    }
 
-        // if there are multiple output classes
-        if (targets.valueCount(0) > 2)
+    // Continues from the current weights, running epochs over the new rows only. The
+    // last fifth of the new rows is the validation set, as in train.
+    @Override
+    public void partialFit(Matrix inputs, Matrix targets) throws Exception
+    {
+        if (targetNodes == null)
         {
-            targetNodes = new TargetNode[targets.valueCount(0)];
-            for (int i = 0; i < targets.valueCount(0); i++)
-            {
-                targetNodes[i] = new TargetNode(hiddenLayerSize, i);
-            }
+            initNetwork(inputs.cols(), targets.valueCount(0));
         }
-        // if there is only one output class
-        else
+        else if (hiddenLayerSize > 0 && inputs.cols() + 1 != hiddenLayers[0][0].weights.length)
         {
-            targetNodes = new TargetNode[1];
-            targetNodes[0] = new TargetNode(hiddenLayerSize, 1);
+            throw new Exception("Expected " + (hiddenLayers[0][0].weights.length - 1) + " features");
         }
-//        for (int i = 0; i < hiddenLayerSize; i++)
-//        {
-//            hiddenNodes[i] = new HiddenNode(inputs.cols());
-//        }
-        for (int i = 0; i < hiddenLayerSize; i++)
+        else if (targetNodes.length != (targets.valueCount(0) > 2 ? targets.valueCount(0) : 1))
         {
-            hiddenLayers[0][i] = new HiddenNode(inputs.cols());
+            throw new Exception("Expected the label to have the " + targetNodes.length + " values the network was trained on");
         }
-        for (int i = 1; i < layers; i++)
+        fit(inputs, targets);
+    }
+
+    // Trains the network from its current weights until the validation accuracy stops
+    // improving
+    private void fit(Matrix inputs, Matrix targets) throws Exception
+    {
+        // a loaded or previously trained network trains in double precision
+        for (HiddenNode[] layer : hiddenLayers)
         {
-            for (int j = 0; j < hiddenLayerSize; j++)
+            for (HiddenNode node : layer)
             {
-                hiddenLayers[i][j] = new HiddenNode(hiddenLayerSize);
+                node.useDoublePrecision();
             }
         }
+        for (TargetNode node : targetNodes)
+        {
+            node.useDoublePrecision();
+        }
+        TargetNode[] bestTargetNodes = targetNodes;
+//        HiddenNode[] bestHiddenNodes = hiddenNodes;
+        HiddenNode[][] bestHiddenLayers = hiddenLayers;
+        double bestVSAccuracy = 0.0;
+        double bestTrainMSE = 0.0;
+        double bestVSMSE = 0.0;
 
         // separate input into training and validation sets
         int trainingSetSize = (int) (inputs.rows() * .8);
-        Matrix trainingFeatures = new Matrix(inputs, 0, 0, trainingSetSize, inputs.cols());
-        Matrix trainingTargets = new Matrix(targets, 0, 0, trainingSetSize, 1);
-        Matrix validationFeatures = new Matrix(inputs, trainingSetSize, 0, inputs.rows() - trainingSetSize, inputs.cols());
-        Matrix validationTargets = new Matrix(targets, trainingSetSize, 0, inputs.rows() - trainingSetSize, 1);
+        Matrix trainingFeatures = inputs.view(0, 0, trainingSetSize, inputs.cols());
+        Matrix trainingTargets = targets.view(0, 0, trainingSetSize, 1);
+        Matrix validationFeatures = inputs.view(trainingSetSize, 0, inputs.rows() - trainingSetSize, inputs.cols());
+        Matrix validationTargets = targets.view(trainingSetSize, 0, inputs.rows() - trainingSetSize, 1);
 
         // save results of training to file
 //        File outputFile = new File("results.csv");
@@ -100,104 +114,22 @@ public class NeuralNet extends SupervisedLearner
         double lastValidationAccuracy = 0.0;
         int epochCount = 0;
         int bestFoundAtEpoch = 0;
+        // sparse instances feed the first layer only their non-zero values
+        int[] indices = inputs.isSparse() ? new int[inputs.cols()] : null;
+        double[] values = inputs.isSparse() ? new double[inputs.cols()] : null;
+        double[] row = new double[inputs.cols()];
         while (learning)
         {
-            double mseTrainSum = 0.0;
-            int mseTrainCount = 0;
+            mseTrainSum = 0.0;
+            mseTrainCount = 0;
             double mseVS = 0.0;
             trainingFeatures.shuffle(rand, trainingTargets);
             epochCount++;
             // one epoch
             for (int i = 0; i < trainingFeatures.rows(); i++)
             {
-                double[] row = trainingFeatures.row(i);
-                double target = trainingTargets.row(i)[0];
-                // get the outputs from the hidden nodes by feeding them the input nodes
-//                double[] hiddenOutputs = new double[hiddenNodes.length];
-//                for (int j = 0; j < hiddenNodes.length; j++)
-//                {
-//                    hiddenOutputs[j] = hiddenNodes[j].output(row);
-//                }
-                double[][] hiddenOutputs = new double[layers][hiddenLayerSize];
-                for (int j = 0; j < hiddenLayerSize; j++)
-                {
-                    hiddenOutputs[0][j] = hiddenLayers[0][j].output(row);
-                }
-                for (int j = 1; j < layers; j++)
-                {
-                    for (int k = 0; k < hiddenLayerSize; k++)
-                    {
-                        hiddenOutputs[j][k] = hiddenLayers[j][k].output(hiddenOutputs[j - 1]);
-                    }
-                }
-                // get the outputs from the target nodes by feeding them the output form the hidden nodes
-                double[] targetOutputs = new double[targetNodes.length];
-                double[] targetErrors = new double[targetNodes.length];
-                for (int j = 0; j < targetNodes.length; j++)
-                {
-                    // outputs
-//                    targetOutputs[j] = targetNodes[j].output(hiddenOutputs);
-                    targetOutputs[j] = targetNodes[j].output(hiddenOutputs[hiddenOutputs.length - 1]);
-                    // calculate the errors
-                    targetErrors[j] = targetNodes[j].error(targetOutputs[j], target);
-                    // calc mean squared error for training set
-                    mseTrainSum += Math.pow(targetErrors[j], 2);
-                    mseTrainCount++;
-                    // update the weights for the target nodes
-//                    targetNodes[j].updateWeight(targetErrors[j], hiddenOutputs);
-                    targetNodes[j].updateWeight(targetErrors[j], hiddenOutputs[hiddenOutputs.length - 1]);
-                }
-                // back propogate the weights through the hidden layer
-//                for (int j = 0; j < hiddenNodes.length; j++)
-//                {
-//                    double[] targetWeights = new double[targetNodes.length];
-//                    for (int k = 0; k < targetNodes.length; k++)
-//                    {
-//                        targetWeights[k] = targetNodes[k].getWeight(j);
-//                    }
-//                    hiddenNodes[j].updateWeight(targetErrors, targetWeights, hiddenOutputs[j], row);
-//                }
-                double[] layerErrors = new double[hiddenLayers[0].length];
-                for (int j = 0; j < hiddenLayers[hiddenLayers.length - 1].length; j++)
-                {
-                    double[] lastInputs;
-                    if (hiddenOutputs.length == 1)
-                    {
-                        lastInputs = row;
-                    }
-                    else
-                    {
-                        lastInputs = hiddenOutputs[hiddenOutputs.length - 2];
-                    }
-                    double[] targetWeights = new double[targetNodes.length];
-                    for (int k = 0; k < targetNodes.length; k++)
-                    {
-                        targetWeights[k] = targetNodes[k].getWeight(j);
-                    }
-                    layerErrors[j] = hiddenLayers[hiddenLayers.length - 1][j].updateWeight(targetErrors, targetWeights, hiddenOutputs[hiddenOutputs.length - 1][j], lastInputs);
-                }
-                for (int j = hiddenLayers.length - 2; j >= 0; j--)
-                {
-                    double[] lastInputs;
-                    if (j == 0)
-                    {
-                        lastInputs = row;
-                    }
-                    else
-                    {
-                        lastInputs = hiddenOutputs[j - 1];
-                    }
-                    double[] nextLayerErrors = new double[hiddenLayers[j + 1].length];
-                    for (int k = 0; k < hiddenLayers[j].length; k++)
-                    {
-                        double[] targetWeights = new double[hiddenLayers[j + 1].length];
-                        for (int l = 0; l < hiddenLayers[j + 1].length; l++)
-                        {
-                            targetWeights[l] = hiddenLayers[j + 1][l].getWeight(k);
-                        }
-                        nextLayerErrors[k] = layerErrors[k] = hiddenLayers[j][k].updateWeight(layerErrors, targetWeights, hiddenOutputs[j][k], lastInputs);
-                    }
-                }
+                int count = indices != null ? trainingFeatures.nonZeros(i, indices, values) : 0;
+                trainRow(trainingFeatures.row(i, row), indices, values, count, trainingTargets.get(i, 0));
             }
 
             // epoch complete, check validation accuracy
@@ -206,16 +138,16 @@ public class NeuralNet extends SupervisedLearner
             for (int i = 0; i < validationFeatures.rows(); i++)
             {
                 total++;
-                double[] row = validationFeatures.row(i);
-                double target = validationTargets.row(i)[0];
+                double[] features = validationFeatures.row(i, row);
+                double target = validationTargets.get(i, 0);
                 double[] prediction = {0};
-                predict(row, prediction);
+                predict(features, prediction);
                 if (target == prediction[0])
                 {
                     correct++;
                 }
                 // calc mean squared error for training set
-                mseVS = calcMeanSquaredError(row, target);
+                mseVS = calcMeanSquaredError(features, target);
             }
             double validationAccuracy = correct / total;
             if (validationAccuracy > lastValidationAccuracy)
@@ -259,10 +191,209 @@ public class NeuralNet extends SupervisedLearner
 //        fileWriter.write(learningRate + "," + bestFoundAtEpoch + "," + bestTrainMSE + "," + bestVSAccuracy + "," + bestVSMSE + ",");
 //        fileWriter.write(hiddenLayerSize + "," + bestFoundAtEpoch + "," + bestTrainMSE + "," + bestVSAccuracy + "," + bestVSMSE + ",");
 //        fileWriter.write(momentumCoeff + "," + bestFoundAtEpoch + "," + bestTrainMSE + "," + bestVSAccuracy + "," + bestVSMSE + ",");
-        fileWriter.write(layers + "," + bestFoundAtEpoch + "," + bestTrainMSE + "," + bestVSAccuracy + "," + bestVSMSE + ",");
+        // a network loaded from a ModelFile has no writer unless one is set
+        if (fileWriter != null)
+        {
+            fileWriter.write(layers + "," + bestFoundAtEpoch + "," + bestTrainMSE + "," + bestVSAccuracy + "," + bestVSMSE + ",");
+        }
 //        hiddenNodes = bestHiddenNodes;
         hiddenLayers = bestHiddenLayers;
         targetNodes = bestTargetNodes;
+        if (inputs.isSinglePrecision())
+        {
+            for (HiddenNode[] layer : hiddenLayers)
+            {
+                for (HiddenNode node : layer)
+                {
+                    node.useSinglePrecision();
+                }
+            }
+            for (TargetNode node : targetNodes)
+            {
+                node.useSinglePrecision();
+            }
+        }
+    }
+
+    // Creates the nodes with random weights
+    private void initNetwork(int inputs, int targetValues)
+    {
+//        hiddenLayerSize = inputs.cols() * 2;
+        hiddenLayers = new HiddenNode[layers][hiddenLayerSize];
+        for (int i = 0; i < layers; i++)
+        {
+            hiddenLayers[i] = new HiddenNode[hiddenLayerSize];
+        }
+//        hiddenNodes = new HiddenNode[hiddenLayerSize];
+
+        // if there are multiple output classes
+        if (targetValues > 2)
+        {
+            targetNodes = new TargetNode[targetValues];
+            for (int i = 0; i < targetValues; i++)
+            {
+                targetNodes[i] = new TargetNode(hiddenLayerSize, i);
+            }
+        }
+        // if there is only one output class
+        else
+        {
+            targetNodes = new TargetNode[1];
+            targetNodes[0] = new TargetNode(hiddenLayerSize, 1);
+        }
+//        for (int i = 0; i < hiddenLayerSize; i++)
+//        {
+//            hiddenNodes[i] = new HiddenNode(inputs.cols());
+//        }
+        for (int i = 0; i < hiddenLayerSize; i++)
+        {
+            hiddenLayers[0][i] = new HiddenNode(inputs);
+        }
+        for (int i = 1; i < layers; i++)
+        {
+            for (int j = 0; j < hiddenLayerSize; j++)
+            {
+                hiddenLayers[i][j] = new HiddenNode(hiddenLayerSize);
+            }
+        }
+    }
+
+    // Runs one instance forward and back propagates its error, adding the squared
+    // errors of the outputs to mseTrainSum. If indices is not null, the first layer
+    // sums only the count non-zero values of the row that it and values give.
+    private void trainRow(double[] row, int[] indices, double[] values, int count, double target)
+    {
+        // get the outputs from the hidden nodes by feeding them the input nodes
+//        double[] hiddenOutputs = new double[hiddenNodes.length];
+//        for (int j = 0; j < hiddenNodes.length; j++)
+//        {
+//            hiddenOutputs[j] = hiddenNodes[j].output(row);
+//        }
+        double[][] hiddenOutputs = new double[layers][hiddenLayerSize];
+        for (int j = 0; j < hiddenLayerSize; j++)
+        {
+            hiddenOutputs[0][j] = indices != null ? hiddenLayers[0][j].output(row, indices, values, count) : hiddenLayers[0][j].output(row);
+        }
+        for (int j = 1; j < layers; j++)
+        {
+            for (int k = 0; k < hiddenLayerSize; k++)
+            {
+                hiddenOutputs[j][k] = hiddenLayers[j][k].output(hiddenOutputs[j - 1]);
+            }
+        }
+        // get the outputs from the target nodes by feeding them the output form the hidden nodes
+        double[] targetOutputs = new double[targetNodes.length];
+        double[] targetErrors = new double[targetNodes.length];
+        for (int j = 0; j < targetNodes.length; j++)
+        {
+            // outputs
+//            targetOutputs[j] = targetNodes[j].output(hiddenOutputs);
+            targetOutputs[j] = targetNodes[j].output(hiddenOutputs[hiddenOutputs.length - 1]);
+            // calculate the errors
+            targetErrors[j] = targetNodes[j].error(targetOutputs[j], target);
+            // calc mean squared error for training set
+            mseTrainSum += targetErrors[j] * targetErrors[j];
+            mseTrainCount++;
+            // update the weights for the target nodes
+//            targetNodes[j].updateWeight(targetErrors[j], hiddenOutputs);
+            targetNodes[j].updateWeight(targetErrors[j], hiddenOutputs[hiddenOutputs.length - 1]);
+        }
+        // back propogate the weights through the hidden layer
+//        for (int j = 0; j < hiddenNodes.length; j++)
+//        {
+//            double[] targetWeights = new double[targetNodes.length];
+//            for (int k = 0; k < targetNodes.length; k++)
+//            {
+//                targetWeights[k] = targetNodes[k].getWeight(j);
+//            }
+//            hiddenNodes[j].updateWeight(targetErrors, targetWeights, hiddenOutputs[j], row);
+//        }
+        double[] layerErrors = new double[hiddenLayers[0].length];
+        for (int j = 0; j < hiddenLayers[hiddenLayers.length - 1].length; j++)
+        {
+            double[] lastInputs;
+            if (hiddenOutputs.length == 1)
+            {
+                lastInputs = row;
+            }
+            else
+            {
+                lastInputs = hiddenOutputs[hiddenOutputs.length - 2];
+            }
+            double[] targetWeights = new double[targetNodes.length];
+            for (int k = 0; k < targetNodes.length; k++)
+            {
+                targetWeights[k] = targetNodes[k].getWeight(j);
+            }
+            layerErrors[j] = hiddenLayers[hiddenLayers.length - 1][j].updateWeight(targetErrors, targetWeights, hiddenOutputs[hiddenOutputs.length - 1][j], lastInputs);
+        }
+        for (int j = hiddenLayers.length - 2; j >= 0; j--)
+        {
+            double[] lastInputs;
+            if (j == 0)
+            {
+                lastInputs = row;
+            }
+            else
+            {
+                lastInputs = hiddenOutputs[j - 1];
+            }
+            double[] nextLayerErrors = new double[hiddenLayers[j + 1].length];
+            for (int k = 0; k < hiddenLayers[j].length; k++)
+            {
+                double[] targetWeights = new double[hiddenLayers[j + 1].length];
+                for (int l = 0; l < hiddenLayers[j + 1].length; l++)
+                {
+                    targetWeights[l] = hiddenLayers[j + 1][l].getWeight(k);
+                }
+                nextLayerErrors[k] = layerErrors[k] = hiddenLayers[j][k].updateWeight(layerErrors, targetWeights, hiddenOutputs[j][k], lastInputs);
+            }
+        }
+    }
+
+    // A stream has no room for a validation set, so streamed training stops once
+    // five passes in a row have not lowered the training MSE by at least 0.1%
+    public void startTraining(Matrix features, Matrix labels) throws Exception
+    {
+        initNetwork(features.cols(), labels.valueCount(0));
+        mseTrainSum = 0.0;
+        mseTrainCount = 0;
+        streamPasses = 0;
+        streamPassesWithoutImprovement = 0;
+        streamBestMSE = Double.MAX_VALUE;
+    }
+
+    public void trainBatch(Matrix features, Matrix labels) throws Exception
+    {
+        double[] row = new double[features.cols()];
+        for (int i = 0; i < features.rows(); i++)
+        {
+            trainRow(features.row(i, row), null, null, 0, labels.get(i, 0));
+        }
+    }
+
+    public boolean endPass() throws Exception
+    {
+        streamPasses++;
+        double mse = mseTrainSum / mseTrainCount;
+        if (mse < streamBestMSE * 0.999)
+        {
+            streamBestMSE = mse;
+            streamPassesWithoutImprovement = 0;
+        }
+        else
+        {
+            streamPassesWithoutImprovement++;
+        }
+        mseTrainSum = 0.0;
+        mseTrainCount = 0;
+        if (streamPassesWithoutImprovement < 5)
+        {
+            return true;
+        }
+        System.out.println("Total epochs: " + streamPasses);
+        System.out.println("Training MSE: " + mse);
+        return false;
     }
 
     @Override
@@ -285,14 +416,66 @@ public class NeuralNet extends SupervisedLearner
         }
 
         double[] targetOutputs = new double[targetNodes.length];
+        for (int i = 0; i < targetNodes.length; i++)
+        {
+//            targetOutputs[i] = targetNodes[i].output(hiddenOutputs);
+            targetOutputs[i] = targetNodes[i].output(hiddenOutputs[hiddenOutputs.length - 1]);
+        }
+
+        labels[0] = prediction(targetOutputs);
+    }
+
+    // Runs PREDICT_BLOCK rows through the network at a time, a layer at a time and
+    // within a layer a node at a time, so each node's weights are loaded once per
+    // block instead of once per row
+    @Override
+    protected void predictRange(Matrix features, int start, int end, double[] out) throws Exception
+    {
+        for (int blockStart = start; blockStart < end; blockStart += PREDICT_BLOCK)
+        {
+            int blockRows = Math.min(end, blockStart + PREDICT_BLOCK) - blockStart;
+            double[][] lastLayerOutputs = new double[blockRows][];
+            for (int r = 0; r < blockRows; r++)
+            {
+                lastLayerOutputs[r] = features.row(blockStart + r);
+            }
+            for (HiddenNode[] layer : hiddenLayers)
+            {
+                double[][] layerOutputs = new double[blockRows][layer.length];
+                for (int j = 0; j < layer.length; j++)
+                {
+                    for (int r = 0; r < blockRows; r++)
+                    {
+                        layerOutputs[r][j] = layer[j].output(lastLayerOutputs[r]);
+                    }
+                }
+                lastLayerOutputs = layerOutputs;
+            }
+            double[][] targetOutputs = new double[blockRows][targetNodes.length];
+            for (int j = 0; j < targetNodes.length; j++)
+            {
+                for (int r = 0; r < blockRows; r++)
+                {
+                    targetOutputs[r][j] = targetNodes[j].output(lastLayerOutputs[r]);
+                }
+            }
+            for (int r = 0; r < blockRows; r++)
+            {
+                out[blockStart + r] = prediction(targetOutputs[r]);
+            }
+        }
+    }
+
+    // The class whose target node has the highest output, or with a single target
+    // node, 1 if its output is at least 0.5 and 0 otherwise
+    private double prediction(double[] targetOutputs)
+    {
         double prediction = -1.0;
         double highest = 0.0;
-        if (targetNodes.length > 1)
+        if (targetOutputs.length > 1)
         {
-            for (int i = 0; i < targetNodes.length; i++)
+            for (int i = 0; i < targetOutputs.length; i++)
             {
-//                targetOutputs[i] = targetNodes[i].output(hiddenOutputs);
-                targetOutputs[i] = targetNodes[i].output(hiddenOutputs[hiddenOutputs.length - 1]);
                 if (targetOutputs[i] > highest)
                 {
                     highest = targetOutputs[i];
@@ -302,9 +485,7 @@ public class NeuralNet extends SupervisedLearner
         }
         else
         {
-//            double output = targetNodes[0].output(hiddenOutputs);
-            double output = targetNodes[0].output(hiddenOutputs[hiddenOutputs.length - 1]);
-            if (output >= 0.5)
+            if (targetOutputs[0] >= 0.5)
             {
                 prediction = 1.0;
             }
@@ -314,7 +495,49 @@ public class NeuralNet extends SupervisedLearner
             }
         }
 
-        labels[0] = prediction;
+        return prediction;
+    }
+
+    // Writes the layers, then the target nodes, each node as its weights
+    @Override
+    protected void writeModel(ModelFile.Output out) throws Exception
+    {
+        out.writeInt(hiddenLayers.length);
+        out.writeInt(hiddenLayerSize);
+        for (HiddenNode[] layer : hiddenLayers)
+        {
+            for (HiddenNode node : layer)
+            {
+                node.write(out);
+            }
+        }
+        out.writeInt(targetNodes.length);
+        for (TargetNode node : targetNodes)
+        {
+            out.writeDouble(node.target);
+            node.write(out);
+        }
+    }
+
+    @Override
+    protected void readModel(ModelFile.Input in) throws Exception
+    {
+        layers = in.readInt();
+        hiddenLayerSize = in.readInt();
+        hiddenLayers = new HiddenNode[layers][hiddenLayerSize];
+        for (int i = 0; i < layers; i++)
+        {
+            for (int j = 0; j < hiddenLayerSize; j++)
+            {
+                hiddenLayers[i][j] = new HiddenNode(in);
+            }
+        }
+        targetNodes = new TargetNode[in.readInt()];
+        for (int i = 0; i < targetNodes.length; i++)
+        {
+            double target = in.readDouble();
+            targetNodes[i] = new TargetNode(target, in);
+        }
     }
 
     public double calcMeanSquaredError(double[] features, double target)
@@ -346,7 +569,7 @@ public class NeuralNet extends SupervisedLearner
             targetOutputs[j] = targetNodes[j].output(hiddenOutputs[hiddenOutputs.length - 1]);
             // calculate the errors
             targetErrors[j] = targetNodes[j].error(targetOutputs[j], target);
-            meanSquaredSum += Math.pow(targetErrors[j], 2);
+            meanSquaredSum += targetErrors[j] * targetErrors[j];
             meanSquaredCount++;
             // update the weights for the target nodes
         }
@@ -383,6 +606,8 @@ public class NeuralNet extends SupervisedLearner
     {
         protected double[] weights;
         protected double[] lastDeltas;
+        protected float[] floatWeights;     // single precision copy of the trained weights, used by output when set
+        protected boolean overflowed;       // a weight is not finite, so zero inputs change the net (0 * Infinity is NaN)
         protected Node(int numInputs)
         {
             weights = new double[numInputs + 1];
@@ -394,24 +619,104 @@ public class NeuralNet extends SupervisedLearner
             }
         }
 
+        // Reads a node written by write
+        protected Node(ModelFile.Input in)
+        {
+            weights = in.readDoubles();
+            floatWeights = in.readFloats();
+            lastDeltas = new double[weights.length];
+            for (double weight : weights)
+            {
+                overflowed = overflowed || !Double.isFinite(weight);
+            }
+        }
+
+        public void write(ModelFile.Output out)
+        {
+            out.writeDoubles(weights);
+            out.writeFloats(floatWeights);
+        }
+
         public double output(double[] inputs)
         {
+            if (floatWeights != null)
+            {
+                return floatOutput(inputs);
+            }
+            return doubleOutput(inputs);
+        }
+
+        // output with the net summed in double precision
+        private double doubleOutput(double[] inputs)
+        {
+            // account for the bias after the inputs
+            double net = Kernels.dot(weights, inputs, inputs.length) + weights[inputs.length] * 1;
+            double output = 1 / (1 + Math.pow(Math.E, -net));
+
+            return output;
+        }
+
+        // output for the inputs, summing only their count non-zero values, which
+        // indices and values give; the zeros add nothing to the net
+        public double output(double[] inputs, int[] indices, double[] values, int count)
+        {
+            if (overflowed || floatWeights != null)
+            {
+                return output(inputs);
+            }
             double net = 0;
-            for (int i = 0; i < inputs.length + 1; i++)
+            for (int k = 0; k < count; k++)
             {
-                // account for the bias
-                if (i == inputs.length)
+                net += weights[indices[k]] * values[k];
+            }
+            // account for the bias
+            net += weights[inputs.length] * 1;
+            double output = 1 / (1 + Math.pow(Math.E, -net));
+
+            return output;
+        }
+
+        // output with the net summed in single precision. An input that is MISSING
+        // (Double.MAX_VALUE) would narrow to Infinity and make the term of a zero
+        // weight NaN, so then the net is summed in double precision instead.
+        private double floatOutput(double[] inputs)
+        {
+            float[] weights = floatWeights;
+            float net = 0;
+            for (int i = 0; i < inputs.length; i++)
+            {
+                if (inputs[i] == Matrix.MISSING)
                 {
-                    net += weights[i] * 1;
+                    return doubleOutput(inputs);
                 }
-                else
+                net += weights[i] * (float) inputs[i];
+            }
+            // account for the bias
+            net += weights[inputs.length];
+
+            return 1 / (1 + Math.pow(Math.E, -net));
+        }
+
+        // Switches output to single precision with the current weights, unless they
+        // do not fit in a float
+        public void useSinglePrecision()
+        {
+            float[] single = new float[weights.length];
+            for (int i = 0; i < weights.length; i++)
+            {
+                single[i] = (float) weights[i];
+                if (Float.isInfinite(single[i]) && !Double.isInfinite(weights[i]))
                 {
-                    net += weights[i] * inputs[i];
+                    return;
                 }
             }
-            double output = 1 / (1 + Math.pow(Math.E, -net));
+            floatWeights = single;
+        }
 
-            return output;
+        // Switches output back to the double precision weights, before they change
+        public void useDoublePrecision()
+        {
+            floatWeights = null;
         }
 
         public double getWeight(int input)
@@ -440,6 +745,12 @@ public class NeuralNet extends SupervisedLearner
             this.target = target;
         }
 
+        public TargetNode(double target, ModelFile.Input in)
+        {
+            super(in);
+            this.target = target;
+        }
+
         public double error(double output, double target)
         {
             if (target == this.target)
@@ -494,6 +805,11 @@ public class NeuralNet extends SupervisedLearner
             super(numInputs);
         }
 
+        public HiddenNode(ModelFile.Input in)
+        {
+            super(in);
+        }
+
         public double updateWeight(double[] errors, double[] outputWeights, double output, double[] inputs)
         {
             double sum = 0;
@@ -519,6 +835,7 @@ public class NeuralNet extends SupervisedLearner
             for (int i = 0; i < weights.length; i++)
             {
                 weights[i] += deltas[i] + (momentum ? momentumCoeff * lastDeltas[i] : 0);
+                overflowed = overflowed || !Double.isFinite(weights[i]);
             }
             lastDeltas = deltas;
 
@@ -530,6 +847,7 @@ public class NeuralNet extends SupervisedLearner
         {
             HiddenNode newNode = new HiddenNode(weights.length - 1);
             newNode.weights = Arrays.copyOf(this.weights, this.weights.length);
+            newNode.overflowed = overflowed;
 
             return newNode;
         }
@@ -1,10 +1,40 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-public class Perceptron extends SupervisedLearner
+public class Perceptron extends SupervisedLearner implements StreamLearner
 {
+    private static final int MAX_EPOCHS = 100;
+
     private double learningRate = .1;
     private Random rand;
+    private boolean averaged;       // keep the average of the weights over training instead of the last ones
+    private boolean verbose = true; // print the progress of training
+    private int threads = 1;        // workers for Hogwild training, 1 to train sequentially
+    private int epochs;             // epochs of the last training, for reports
     private double[] weights;
+    private float[] floatWeights;   // single precision copy of the weights, used by predict when set
+    private boolean overflowed;     // a weight is not finite, so zero features change the net (0 * Infinity is NaN)
+
+    // For a label with more than two values, one perceptron per value trained to tell
+    // it from the rest, and the value whose net is highest is predicted. Their weights
+    // are stored back to back, [classes x (features + 1)], and weights is null.
+    private int classes;
+    private double[] classWeights;
+
+    // Progress when training from a stream, one epoch per pass. With more than two
+    // label values, streamClasses holds each class's weights while they are trained.
+    private Progress streamProgress;
+    private int streamCorrect;
+    private int streamRows;
+    private double[][] streamClasses;
 
     public Perceptron(Random rand)
     {
@@ -14,106 +44,653 @@ public class Perceptron extends SupervisedLearner
     @Override
     public void train(Matrix inputs, Matrix targets) throws Exception
     {
-        // initialize weights to 0
-        weights = new double[inputs.row(0).length + 1];
-        double weightSum = 0;
-        for (int i = 0; i < weights.length; i++)
+        if (targets.valueCount(0) > 2)
         {
-            if (i == weights.length + 1)
+            initClassWeights(inputs.cols(), targets.valueCount(0));
+            fitClasses(inputs, targets);
+            return;
+        }
+        initWeights(inputs.row(0).length);
+        fit(inputs, targets);
+    }
+
+    // Continues from the current weights, running epochs over the new rows only
+    @Override
+    public void partialFit(Matrix inputs, Matrix targets) throws Exception
+    {
+        if (weights == null && classWeights == null)
+        {
+            train(inputs, targets);
+            return;
+        }
+        int features = (classWeights != null ? classWeights.length / classes : weights.length) - 1;
+        if (inputs.cols() != features)
+        {
+            throw new Exception("Expected " + features + " features");
+        }
+        if (classWeights == null)
+        {
+            fit(inputs, targets);
+            return;
+        }
+        if (targets.valueCount(0) != classes)
+        {
+            throw new Exception("Expected the label to have the " + classes + " values the perceptron was trained on");
+        }
+        fitClasses(inputs, targets);
+    }
+
+    // Trains from the current weights until Progress says to stop
+    private void fit(Matrix inputs, Matrix targets) throws Exception
+    {
+        inputs.shuffle(rand, targets);
+        if (verbose)
+        {
+            System.out.println("\nEpoch Accuracy:");
+        }
+        int epoch;
+        if (averaged)
+        {
+            epoch = fitAveraged(inputs, targets);
+        }
+        else if (threads > 1)
+        {
+            epoch = fitHogwild(inputs, targets);
+        }
+        else
+        {
+            epoch = fitLast(inputs, targets);
+        }
+        epochs = epoch;
+        if (verbose)
+        {
+            System.out.println("Number of epochs before haulting: " + epoch);
+            System.out.println("\nWeight Values");
+            for (int i = 0; i < inputs.cols(); i++)
             {
-                weights[i] = 0 - weightSum;
+                System.out.println(inputs.attrName(i) + ", " + weights[i]);
             }
-            else
+            System.out.println();
+        }
+        floatWeights = null;
+        if (inputs.isSinglePrecision())
+        {
+            // weights out of float range (e.g. from training on missing values) stay in double
+            floatWeights = new float[weights.length];
+            for (int i = 0; i < weights.length && floatWeights != null; i++)
             {
-                double weight = rand.nextFloat() * 0.1;
-                weights[i] = weight;
-                weightSum += weight;
+                floatWeights[i] = (float) weights[i];
+                if (Float.isInfinite(floatWeights[i]) && !Double.isInfinite(weights[i]))
+                {
+                    floatWeights = null;
+                }
             }
-//            weights[i] = 0.0;
         }
+    }
 
+    // Trains the weights from their current values, presenting the rows in order until
+    // Progress says to stop, and returns the number of epochs
+    private int fitLast(Matrix inputs, Matrix targets)
+    {
         // while the model is still learning iterate through another epoch
-        int epochsWithoutImprovement = 0;
-        double lastAccuracy = 0.0;
-        int epoch = 0;
-        inputs.shuffle(rand, targets);
-        System.out.println("\nEpoch Accuracy:");
-        while (epochsWithoutImprovement < 5)
+        Progress progress = new Progress();
+        // sparse instances are presented as their non-zero values
+        int[] indices = inputs.isSparse() ? new int[inputs.cols()] : null;
+        double[] values = inputs.isSparse() ? new double[inputs.cols()] : null;
+        double[] row = new double[inputs.cols()];
+        while (progress.going())
         {
-            epoch++;
             int correct = 0;
             for (int i = 0; i < inputs.rows(); i++)
             {
-                double target = targets.row(i)[0];
-                double net = 0;
-                double output;
-                for (int j = 0; j < inputs.row(i).length + 1; j++)
+                boolean right;
+                if (indices != null && !overflowed)
+                {
+                    right = trainRow(indices, values, inputs.nonZeros(i, indices, values), targets.get(i, 0));
+                }
+                else
+                {
+                    right = trainRow(inputs.row(i, row), targets.get(i, 0));
+                }
+                if (right)
+                {
+                    correct++;
+                }
+            }
+            double accuracy = (double)correct / inputs.rows();
+            progress.record(accuracy);
+            if (verbose)
+            {
+                System.out.println(progress.epoch + ", " + accuracy);
+            }
+        }
+        return progress.epoch;
+    }
+
+    // Trains the averaged perceptron, with the stopping rule of Progress, and returns
+    // the number of epochs. The weights it keeps are the average of the weights over
+    // every instance of every epoch, which generalize better than the last ones. Each
+    // weight's running sum is only brought up to date when the weight changes, from
+    // the step at which it last changed (its timestamp), so an update costs the
+    // non-zero values of the instance. Unlike fitLast, the bias is updated too. The
+    // instances and labels are gathered into arrays once, and nothing is allocated
+    // per instance.
+    private int fitAveraged(Matrix inputs, Matrix targets)
+    {
+        Instances data = new Instances(inputs, targets);
+        int epoch = fitAveraged(data, data.labels, weights, verbose);
+        overflowed = false;
+        for (double weight : weights)
+        {
+            overflowed = overflowed || !Double.isFinite(weight);
+        }
+        return epoch;
+    }
+
+    // Trains the weights, features then bias, as the averaged perceptron on the
+    // instances with the specified 0 or 1 labels, and returns the number of epochs.
+    // It only writes to weights, so classes can be trained on the same instances at
+    // once. Prints each epoch's accuracy if report is set.
+    private int fitAveraged(Instances data, double[] labels, double[] weights, boolean report)
+    {
+        int n = weights.length - 1;
+        int rows = labels.length;
+        double[][] dense = data.dense;
+        int[] starts = data.starts;
+        int[] indices = data.indices;
+        double[] values = data.values;
+
+        double[] sums = new double[n + 1];  // each weight summed over the steps before its timestamp
+        long[] stamps = new long[n + 1];
+        long step = 0;
+        Progress progress = new Progress();
+        while (progress.going())
+        {
+            int correct = 0;
+            for (int r = 0; r < rows; r++)
+            {
+                double output = data.net(r, weights) > 0 ? 1 : 0;
+                if (output == labels[r])
                 {
-                    // add the bias
-                    if (j == inputs.row(i).length)
+                    correct++;
+                }
+                else
+                {
+                    double delta = learningRate * (labels[r] - output);
+                    if (dense != null)
                     {
-                        net += 1 * weights[j];
+                        double[] row = dense[r];
+                        for (int i = 0; i < n; i++)
+                        {
+                            if (row[i] != 0)
+                            {
+                                sums[i] += weights[i] * (step - stamps[i]);
+                                stamps[i] = step;
+                                weights[i] += delta * row[i];
+                            }
+                        }
                     }
-                    // add the features
                     else
                     {
-                        net += inputs.row(i)[j] * weights[j];
+                        for (int k = starts[r]; k < starts[r + 1]; k++)
+                        {
+                            int i = indices[k];
+                            sums[i] += weights[i] * (step - stamps[i]);
+                            stamps[i] = step;
+                            weights[i] += delta * values[k];
+                        }
                     }
+                    sums[n] += weights[n] * (step - stamps[n]);
+                    stamps[n] = step;
+                    weights[n] += delta;
                 }
-                if (net > 0)
+                step++;
+            }
+            double accuracy = (double) correct / rows;
+            progress.record(accuracy);
+            if (report)
+            {
+                System.out.println(progress.epoch + ", " + accuracy);
+            }
+        }
+        for (int i = 0; i <= n; i++)
+        {
+            sums[i] += weights[i] * (step - stamps[i]);
+            weights[i] = sums[i] / step;
+        }
+        return progress.epoch;
+    }
+
+    // Trains Hogwild style: each of the worker threads walks its own slice of the
+    // shuffled rows and updates the shared weights with no locks, so an update can
+    // be lost when two workers change the same weight at once. That is rare when the
+    // rows are sparse, and costs little. The workers meet at the end of every epoch,
+    // where the stopping rule of Progress is applied to their combined accuracy.
+    // Otherwise each row is presented as fitLast presents it. Returns the number of
+    // epochs.
+    private int fitHogwild(Matrix inputs, Matrix targets) throws Exception
+    {
+        Instances data = new Instances(inputs, targets);
+        int rows = data.labels.length;
+        List<Callable<Integer>> slices = new ArrayList<Callable<Integer>>();
+        for (int t = 0; t < threads; t++)
+        {
+            int from = (int) ((long) rows * t / threads);
+            int to = (int) ((long) rows * (t + 1) / threads);
+            slices.add(() -> fitSlice(data, from, to));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Progress progress = new Progress();
+        try
+        {
+            while (progress.going())
+            {
+                int correct = 0;
+                for (Future<Integer> result : pool.invokeAll(slices))
                 {
-                    output = 1;
+                    try
+                    {
+                        correct += result.get();
+                    }
+                    catch (ExecutionException e)
+                    {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
                 }
-                else
+                double accuracy = (double) correct / rows;
+                progress.record(accuracy);
+                if (verbose)
                 {
-                    output = 0;
+                    System.out.println(progress.epoch + ", " + accuracy);
                 }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        overflowed = false;
+        for (double weight : weights)
+        {
+            overflowed = overflowed || !Double.isFinite(weight);
+        }
+        return progress.epoch;
+    }
 
+    // One Hogwild worker's pass over rows [from, to). Returns the number of rows that
+    // were classified correctly.
+    private int fitSlice(Instances data, int from, int to)
+    {
+        // the weights are plain doubles, read and written with no locks (reads and
+        // writes of a double are not torn on 64-bit JVMs)
+        double[] weights = this.weights;
+        int n = weights.length - 1;
+        int correct = 0;
+        for (int r = from; r < to; r++)
+        {
+            double target = data.labels[r];
+            if (data.dense != null)
+            {
+                double output = output(data.dense[r], weights);
                 if (output == target)
                 {
                     correct++;
                 }
                 else
                 {
-                    updateWeights(inputs.row(i), weights, target, output);
+                    updateWeights(data.dense[r], weights, target, output);
                 }
+                continue;
             }
-            double accuracy = (double)correct / inputs.rows();
-            if (accuracy - lastAccuracy > .01)
+            double net = 0;
+            for (int k = data.starts[r]; k < data.starts[r + 1]; k++)
             {
-                epochsWithoutImprovement = 0;
+                net += data.values[k] * weights[data.indices[k]];
+            }
+            // add the bias
+            net += 1 * weights[n];
+            double output = net > 0 ? 1 : 0;
+            if (output == target)
+            {
+                correct++;
+                continue;
+            }
+            double delta = learningRate * (target - output);
+            for (int k = data.starts[r]; k < data.starts[r + 1]; k++)
+            {
+                weights[data.indices[k]] += delta * data.values[k];
+            }
+        }
+        return correct;
+    }
+
+    // Sets small random starting weights for the given number of inputs, plus the bias
+    private void initWeights(int inputs)
+    {
+        // initialize weights to 0
+        floatWeights = null;
+        overflowed = false;
+        classes = 0;
+        classWeights = null;
+        weights = new double[inputs + 1];
+        double weightSum = 0;
+        for (int i = 0; i < weights.length; i++)
+        {
+            if (i == weights.length + 1)
+            {
+                weights[i] = 0 - weightSum;
             }
             else
             {
-                epochsWithoutImprovement++;
+                double weight = rand.nextFloat() * 0.1;
+                weights[i] = weight;
+                weightSum += weight;
             }
-            lastAccuracy = accuracy;
-            System.out.println(epoch + ", " + accuracy);
+//            weights[i] = 0.0;
         }
-        System.out.println("Number of epochs before haulting: " + epoch);
-        System.out.println("\nWeight Values");
-        for (int i = 0; i < inputs.cols(); i++)
+    }
+
+    // Sets small random starting weights for each class, in class order
+    private void initClassWeights(int inputs, int values)
+    {
+        weights = null;
+        floatWeights = null;
+        overflowed = false;
+        classes = values;
+        classWeights = new double[values * (inputs + 1)];
+        for (int i = 0; i < classWeights.length; i++)
         {
-            System.out.println(inputs.attrName(i) + ", " + weights[i]);
+            classWeights[i] = rand.nextFloat() * 0.1;
         }
-        System.out.println();
     }
 
-    @Override
-    public void predict(double[] features, double[] prediction) throws Exception
+    // Trains every class against the rest at once, one task per class on the common
+    // fork-join pool. The rows are shuffled once up front; after that the features
+    // and labels are only read, and each task works on a copy of its own weights.
+    private void fitClasses(Matrix inputs, Matrix targets) throws Exception
     {
-        double net = 0;
-        for (int i = 0; i < features.length + 1; i++)
+        inputs.shuffle(rand, targets);
+        epochs = 0;
+        int stride = inputs.cols() + 1;
+        Instances data = averaged ? labelled(inputs, targets) : null;
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+        for (int c = 0; c < classes; c++)
         {
-            if (i == features.length)
+            final int value = c;
+            if (averaged)
             {
-                net += 1 * weights[i];
+                tasks.add(() -> fitClassAveraged(data, value, stride));
             }
             else
             {
-                net += features[i] * weights[i];
+                tasks.add(() -> fitClass(inputs, targets, value, stride));
+            }
+        }
+        List<Future<Double>> results = ForkJoinPool.commonPool().invokeAll(tasks);
+        if (verbose)
+        {
+            System.out.println("\nClass Accuracy:");
+        }
+        for (int c = 0; c < classes; c++)
+        {
+            try
+            {
+                double accuracy = results.get(c).get();
+                if (verbose)
+                {
+                    System.out.println(targets.attrValue(0, c) + ", " + accuracy);
+                }
+            }
+            catch (ExecutionException e)
+            {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        if (verbose)
+        {
+            System.out.println();
+        }
+    }
+
+    // Trains the weights of one class against the rest, with the stopping rule of
+    // Progress, and returns the last epoch's training accuracy. Rows with a missing label
+    // are skipped.
+    private double fitClass(Matrix inputs, Matrix targets, int value, int stride)
+    {
+        double[] weights = Arrays.copyOfRange(classWeights, value * stride, (value + 1) * stride);
+        double[] buffer = new double[inputs.cols()];
+        Progress progress = new Progress();
+        while (progress.going())
+        {
+            int correct = 0;
+            int rows = 0;
+            for (int i = 0; i < inputs.rows(); i++)
+            {
+                double label = targets.get(i, 0);
+                if (label == Matrix.MISSING)
+                {
+                    continue;
+                }
+                double[] row = inputs.row(i, buffer);
+                double target = label == value ? 1 : 0;
+                double output = output(row, weights);
+                if (output == target)
+                {
+                    correct++;
+                }
+                else
+                {
+                    updateWeights(row, weights, target, output);
+                }
+                rows++;
             }
+            progress.record((double) correct / rows);
         }
+        System.arraycopy(weights, 0, classWeights, value * stride, stride);
+        return progress.lastAccuracy;
+    }
+
+    // Trains the weights of one class against the rest as the averaged perceptron,
+    // and returns the training accuracy of the averaged weights
+    private double fitClassAveraged(Instances data, int value, int stride)
+    {
+        double[] weights = Arrays.copyOfRange(classWeights, value * stride, (value + 1) * stride);
+        int rows = data.labels.length;
+        double[] labels = new double[rows];
+        for (int r = 0; r < rows; r++)
+        {
+            labels[r] = data.labels[r] == value ? 1 : 0;
+        }
+        fitAveraged(data, labels, weights, false);
+        int correct = 0;
+        for (int r = 0; r < rows; r++)
+        {
+            if ((data.net(r, weights) > 0 ? 1 : 0) == labels[r])
+            {
+                correct++;
+            }
+        }
+        System.arraycopy(weights, 0, classWeights, value * stride, stride);
+        return rows == 0 ? 0 : (double) correct / rows;
+    }
+
+    // The instances of the rows that have a label, for the one-vs-rest averaged
+    // perceptron, which skips the rest as fitClass does
+    private static Instances labelled(Matrix inputs, Matrix targets)
+    {
+        int[] rows = new int[inputs.rows()];
+        int count = 0;
+        for (int r = 0; r < inputs.rows(); r++)
+        {
+            if (targets.get(r, 0) != Matrix.MISSING)
+            {
+                rows[count++] = r;
+            }
+        }
+        if (count == rows.length)
+        {
+            return new Instances(inputs, targets);
+        }
+        rows = Arrays.copyOf(rows, count);
+        return new Instances(new Matrix(inputs, rows, 0, inputs.cols()), new Matrix(targets, rows, 0, 1));
+    }
+
+    // Presents one instance, updating the weights if it is misclassified.
+    // Returns true if it was classified correctly.
+    private boolean trainRow(double[] row, double target)
+    {
+        double output = output(row, weights);
+        if (output == target)
+        {
+            return true;
+        }
+        overflowed = updateWeights(row, weights, target, output) || overflowed;
+        return false;
+    }
+
+    // 1 if the net input of the instance is positive, otherwise 0
+    private static double output(double[] row, double[] weights)
+    {
+        // add the features, then the bias
+        double net = Kernels.dot(row, weights, row.length) + 1 * weights[row.length];
+        if (net > 0)
+        {
+            return 1;
+        }
+        return 0;
+    }
+
+    // trainRow for an instance given by its count non-zero values. Zero features add
+    // nothing to the net and get no weight change, so only the non-zeros are visited.
+    private boolean trainRow(int[] indices, double[] values, int count, double target)
+    {
+        double net = 0;
+        for (int k = 0; k < count; k++)
+        {
+            net += values[k] * weights[indices[k]];
+        }
+        // add the bias
+        net += 1 * weights[weights.length - 1];
+        double output = net > 0 ? 1 : 0;
+
+        if (output == target)
+        {
+            return true;
+        }
+        double delta = learningRate * (target - output);
+        for (int k = 0; k < count; k++)
+        {
+            weights[indices[k]] += delta * values[k];
+            overflowed = overflowed || !Double.isFinite(weights[indices[k]]);
+        }
+        return false;
+    }
+
+    // Streamed training follows train, except that the instances are seen in file
+    // order instead of being shuffled. With more than two label values every class
+    // is trained against the rest on each row, and the stopping rule is applied to
+    // the accuracy of all the classes together.
+    public void startTraining(Matrix features, Matrix labels) throws Exception
+    {
+        streamClasses = null;
+        if (labels.valueCount(0) > 2)
+        {
+            initClassWeights(features.cols(), labels.valueCount(0));
+            int stride = features.cols() + 1;
+            streamClasses = new double[classes][];
+            for (int c = 0; c < classes; c++)
+            {
+                streamClasses[c] = Arrays.copyOfRange(classWeights, c * stride, (c + 1) * stride);
+            }
+        }
+        else
+        {
+            initWeights(features.cols());
+        }
+        streamProgress = new Progress();
+        streamCorrect = 0;
+        streamRows = 0;
+        if (verbose)
+        {
+            System.out.println("\nEpoch Accuracy:");
+        }
+    }
+
+    public void trainBatch(Matrix features, Matrix labels) throws Exception
+    {
+        double[] row = new double[features.cols()];
+        if (streamClasses == null)
+        {
+            for (int i = 0; i < features.rows(); i++)
+            {
+                if (trainRow(features.row(i, row), labels.get(i, 0)))
+                {
+                    streamCorrect++;
+                }
+            }
+            streamRows += features.rows();
+            return;
+        }
+        // one-vs-rest, skipping rows with a missing label as fitClass does
+        for (int i = 0; i < features.rows(); i++)
+        {
+            double label = labels.get(i, 0);
+            if (label == Matrix.MISSING)
+            {
+                continue;
+            }
+            double[] instance = features.row(i, row);
+            for (int c = 0; c < classes; c++)
+            {
+                double target = label == c ? 1 : 0;
+                double output = output(instance, streamClasses[c]);
+                if (output == target)
+                {
+                    streamCorrect++;
+                }
+                else
+                {
+                    updateWeights(instance, streamClasses[c], target, output);
+                }
+            }
+            streamRows += classes;
+        }
+    }
+
+    public boolean endPass() throws Exception
+    {
+        double accuracy = (double) streamCorrect / streamRows;
+        streamProgress.record(accuracy);
+        streamCorrect = 0;
+        streamRows = 0;
+        if (streamClasses != null)
+        {
+            for (int c = 0; c < classes; c++)
+            {
+                System.arraycopy(streamClasses[c], 0, classWeights, c * streamClasses[c].length, streamClasses[c].length);
+            }
+        }
+        if (verbose)
+        {
+            System.out.println(streamProgress.epoch + ", " + accuracy);
+        }
+        return streamProgress.going();
+    }
+
+    @Override
+    public void predict(double[] features, double[] prediction) throws Exception
+    {
+        if (classWeights != null)
+        {
+            prediction[0] = predictClass(features);
+            return;
+        }
+        if (floatWeights != null)
+        {
+            prediction[0] = floatNet(features) > 0 ? 1 : 0;
+            return;
+        }
+        double net = Kernels.dot(features, weights, features.length) + 1 * weights[features.length];
         if (net > 0)
         {
             prediction[0] = 1;
@@ -124,16 +701,205 @@ public class Perceptron extends SupervisedLearner
         }
     }
 
-    private void updateWeights(double[] features, double[] weights, double target, double output)
+    // Keeps the average of the weights over training (the averaged perceptron) instead
+    // of the last weights. With a label of more than two values each one-vs-rest
+    // perceptron is averaged.
+    public void setAveraged(boolean averaged)
+    {
+        this.averaged = averaged;
+    }
+
+    // Trains a binary label Hogwild style on this many threads (see fitHogwild), or
+    // sequentially if it is 1. The averaged perceptron is always trained sequentially.
+    public void setThreads(int threads)
+    {
+        this.threads = Math.max(1, threads);
+    }
+
+    // Returns the number of epochs the last training took (0 after one-vs-rest training)
+    int epochs()
+    {
+        return epochs;
+    }
+
+    // Turns the per-epoch and weight printouts of training on or off
+    public void setVerbose(boolean verbose)
+    {
+        this.verbose = verbose;
+    }
+
+    // The class whose net is highest, in one pass over the weights of all the classes
+    private double predictClass(double[] features)
+    {
+        int n = features.length;
+        int best = 0;
+        double bestNet = Double.NEGATIVE_INFINITY;
+        for (int c = 0, offset = 0; c < classes; c++, offset += n + 1)
+        {
+            // add the features, then the bias
+            double net = Kernels.dot(features, classWeights, offset, n) + classWeights[offset + n];
+            if (net > bestNet)
+            {
+                bestNet = net;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    protected void writeModel(ModelFile.Output out) throws Exception
+    {
+        out.writeDoubles(weights);
+        out.writeFloats(floatWeights);
+        out.writeInt(classes);
+        out.writeDoubles(classWeights);
+    }
+
+    @Override
+    protected void readModel(ModelFile.Input in) throws Exception
+    {
+        weights = in.readDoubles();
+        floatWeights = in.readFloats();
+        classes = in.readInt();
+        classWeights = in.readDoubles();
+        overflowed = false;
+        for (int i = 0; weights != null && i < weights.length; i++)
+        {
+            overflowed = overflowed || !Double.isFinite(weights[i]);
+        }
+    }
+
+    // The net input summed in single precision. MISSING (Double.MAX_VALUE) has no
+    // float; narrowed it would be Infinity, which makes the term of a zero weight NaN,
+    // so a row with a missing value gets the double precision net instead.
+    private double floatNet(double[] features)
     {
-        double[] delta = new double[weights.length];
+        float[] weights = floatWeights;
+        float net = 0;
         for (int i = 0; i < features.length; i++)
         {
-            delta[i] = learningRate*(target - output)*features[i];
+            if (features[i] == Matrix.MISSING)
+            {
+                return Kernels.dot(features, this.weights, features.length) + this.weights[features.length];
+            }
+            net += (float) features[i] * weights[i];
         }
-        for (int i = 0; i < weights.length; i++)
+        // add the bias
+        return net + weights[features.length];
+    }
+
+    // Moves the weights of the features in place (the bias is left as it is). Returns
+    // true if a weight is no longer finite.
+    private boolean updateWeights(double[] features, double[] weights, double target, double output)
+    {
+        boolean overflowed = false;
+        double delta = learningRate*(target - output);
+        for (int i = 0; i < features.length; i++)
+        {
+            weights[i] += delta*features[i];
+            overflowed = overflowed || !Double.isFinite(weights[i]);
+        }
+        return overflowed || !Double.isFinite(weights[features.length]);
+    }
+
+    /**
+     * The stopping rule of every training loop: stop once five epochs in a row have
+     * not improved the training accuracy by more than 1%, or after MAX_EPOCHS, since
+     * on some shuffles the accuracy keeps swinging by more than 1% and never settles.
+     */
+    private static class Progress
+    {
+        int epoch;
+        double lastAccuracy;
+        private int epochsWithoutImprovement;
+
+        // True while another epoch should be run
+        boolean going()
+        {
+            return epochsWithoutImprovement < 5 && epoch < MAX_EPOCHS;
+        }
+
+        // Counts an epoch with the given training accuracy
+        void record(double accuracy)
+        {
+            epoch++;
+            if (accuracy - lastAccuracy > .01)
+            {
+                epochsWithoutImprovement = 0;
+            }
+            else
+            {
+                epochsWithoutImprovement++;
+            }
+            lastAccuracy = accuracy;
+        }
+    }
+
+    /**
+     * The rows and labels of a training set gathered into arrays once, for training
+     * loops that make no Matrix calls: dense rows by row, or sparse rows as their
+     * non-zero values back to back, row r at [starts[r], starts[r + 1]).
+     */
+    private static class Instances
+    {
+        double[] labels;
+        double[][] dense;
+        int[] starts;
+        int[] indices;
+        double[] values;
+
+        Instances(Matrix inputs, Matrix targets)
         {
-            weights[i] += delta[i];
+            int n = inputs.cols();
+            int rows = inputs.rows();
+            labels = new double[rows];
+            for (int r = 0; r < rows; r++)
+            {
+                labels[r] = targets.get(r, 0);
+            }
+            if (inputs.isSparse())
+            {
+                int[] rowIndices = new int[n];
+                double[] rowValues = new double[n];
+                starts = new int[rows + 1];
+                for (int r = 0; r < rows; r++)
+                {
+                    starts[r + 1] = starts[r] + inputs.nonZeros(r, rowIndices, rowValues);
+                }
+                indices = new int[starts[rows]];
+                values = new double[starts[rows]];
+                for (int r = 0; r < rows; r++)
+                {
+                    int count = inputs.nonZeros(r, rowIndices, rowValues);
+                    System.arraycopy(rowIndices, 0, indices, starts[r], count);
+                    System.arraycopy(rowValues, 0, values, starts[r], count);
+                }
+            }
+            else
+            {
+                dense = new double[rows][];
+                for (int r = 0; r < rows; r++)
+                {
+                    dense[r] = inputs.row(r);
+                }
+            }
+        }
+
+        // The net input of row r, the bias plus the weighted features
+        double net(int r, double[] weights)
+        {
+            int n = weights.length - 1;
+            double net = weights[n];
+            if (dense != null)
+            {
+                return net + Kernels.dot(dense[r], weights, n);
+            }
+            for (int k = starts[r]; k < starts[r + 1]; k++)
+            {
+                net += values[k] * weights[indices[k]];
+            }
+            return net;
         }
     }
 }
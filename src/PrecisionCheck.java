@@ -0,0 +1,137 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.Random;
+
+/**
+ * Compares single precision storage (-F) with double precision for each learner
+ * that has a float path: the Perceptron's and NeuralNet's float nets, and kNN's
+ * float distances. Each ARFF file is loaded both ways, shuffled the same way and
+ * split 70/30, as MLSystemManager's random evaluation splits it, and the learner is
+ * trained on each copy from the same seed. It reports the test set accuracy of both,
+ * the fraction of test rows they predict alike, and the same for the test rows that
+ * have a missing value. Exits with status 1 if the accuracies differ by more than
+ * TOLERANCE, or if a row with a missing value is predicted as something that is not
+ * a value of the label (a NaN net, for example).
+ */
+public class PrecisionCheck
+{
+    private static final String[] LEARNERS = { "perceptron", "neuralnet", "knn" };
+    private static final double TOLERANCE = .02;
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length == 0)
+        {
+            System.out.println("Usage:");
+            System.out.println("PrecisionCheck [ARFF_File]...");
+            System.out.println("e.g. PrecisionCheck iris.arff voting.arff credit-a.arff vowel.arff");
+            System.exit(0);
+        }
+        boolean failed = false;
+        for (String filename : args)
+        {
+            System.out.println(filename + ":");
+            for (String name : LEARNERS)
+            {
+                String result;
+                try
+                {
+                    result = check(name, filename);
+                }
+                catch (Exception e)
+                {
+                    result = "FAILED, could not train: " + e;
+                }
+                failed = failed || result.startsWith("FAILED");
+                System.out.println("  " + name + ": " + result);
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    // Returns the comparison, starting with FAILED if the float path is off
+    private static String check(String name, String filename) throws Exception
+    {
+        double[][] predictions = new double[2][];
+        double[] accuracies = new double[2];
+        Matrix testFeatures = null;
+        Matrix testLabels = null;
+        for (int single = 0; single < 2; single++)
+        {
+            Matrix data = new Matrix();
+            data.setSinglePrecision(single == 1);
+            data.load(filename);
+            data.shuffle(new Random(1234));
+            int label = data.cols() - 1;
+            int trainSize = (int) (0.7 * data.rows());
+            Matrix trainFeatures = new Matrix(data, 0, 0, trainSize, label);
+            Matrix trainLabels = new Matrix(data, 0, label, trainSize, 1);
+            testFeatures = new Matrix(data, trainSize, 0, data.rows() - trainSize, label);
+            testLabels = new Matrix(data, trainSize, label, data.rows() - trainSize, 1);
+
+            SupervisedLearner learner = new MLSystemManager().getLearner(name, new Random(1234));
+            if (learner instanceof NeuralNet)
+            {
+                ((NeuralNet) learner).setFileWriter(new StringWriter());
+            }
+            // the learners report their training on System.out, which would bury the results
+            PrintStream out = System.out;
+            System.setOut(new PrintStream(new ByteArrayOutputStream()));
+            try
+            {
+                learner.train(trainFeatures, trainLabels);
+            }
+            finally
+            {
+                System.setOut(out);
+            }
+            predictions[single] = new double[testFeatures.rows()];
+            learner.predictBatch(testFeatures, predictions[single]);
+            accuracies[single] = learner.measureAccuracy(testFeatures, testLabels, null);
+        }
+
+        int rows = testFeatures.rows();
+        int agree = 0;
+        int missingRows = 0;
+        int missingAgree = 0;
+        int values = testLabels.valueCount(0);
+        for (int r = 0; r < rows; r++)
+        {
+            boolean same = Double.compare(predictions[0][r], predictions[1][r]) == 0;
+            if (same)
+            {
+                agree++;
+            }
+            if (Distance.hasMissing(testFeatures.row(r)))
+            {
+                missingRows++;
+                if (same)
+                {
+                    missingAgree++;
+                }
+                double p = predictions[1][r];
+                if (values > 0 && (Double.isNaN(p) || p < 0 || p >= values || p != (int) p))
+                {
+                    return "FAILED, the float prediction of test row " + r + ", which has a missing value, is " + p;
+                }
+            }
+        }
+        double difference = accuracies[1] - accuracies[0];
+        String result = String.format("double %.4f  float %.4f  difference %+.4f  agree %.4f", accuracies[0], accuracies[1], difference, (double) agree / rows);
+        if (missingRows > 0)
+        {
+            result += String.format("  rows with missing values agree %d of %d", missingAgree, missingRows);
+        }
+        if (Math.abs(difference) > TOLERANCE)
+        {
+            return "FAILED, " + result;
+        }
+        return result;
+    }
+}
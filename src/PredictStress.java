@@ -0,0 +1,170 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+
+/**
+ * Checks that every learner MLSystemManager.getLearner knows keeps the predict
+ * contract of SupervisedLearner: trains each one on an ARFF file, predicts every row
+ * on one thread, and then has a pool of threads predict all the rows again, each in
+ * its own order and many times over, through one shared learner. Every prediction
+ * must match the single-threaded one, and the feature rows must be unchanged.
+ * predictBatch is checked against the same predictions. Exits with status 1 if any
+ * learner fails.
+ */
+public class PredictStress
+{
+    private static final String[] LEARNERS = { "baseline", "perceptron", "averagedperceptron", "kernelperceptron", "polykernelperceptron", "neuralnet", "decisiontree", "knn" };
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage:");
+            System.out.println("PredictStress [ARFF_File] [Threads]");
+            System.exit(0);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+        boolean failed = false;
+        for (String name : LEARNERS)
+        {
+            String result;
+            try
+            {
+                result = check(name, args[0], threads);
+            }
+            catch (Exception e)
+            {
+                result = "could not train: " + e;
+            }
+            failed = failed || !result.startsWith("ok");
+            System.out.println(name + ": " + result);
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    // Returns "ok" and the counts, or what went wrong
+    private static String check(String name, String filename, int threads) throws Exception
+    {
+        Matrix data = new Matrix();
+        data.load(filename);
+        data.shuffle(new Random(1234));
+        Matrix features = new Matrix(data, 0, 0, data.rows(), data.cols() - 1);
+        Matrix labels = new Matrix(data, 0, data.cols() - 1, data.rows(), 1);
+
+        SupervisedLearner learner = new MLSystemManager().getLearner(name, new Random(1234));
+        if (learner instanceof NeuralNet)
+        {
+            ((NeuralNet) learner).setFileWriter(new StringWriter());
+        }
+        learner.train(features, labels);
+
+        int rows = features.rows();
+        double[][] rowsBefore = new double[rows][];
+        double[] expected = new double[rows];
+        for (int r = 0; r < rows; r++)
+        {
+            rowsBefore[r] = features.row(r).clone();
+            expected[r] = predict(learner, features.row(r));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            ArrayList<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                final long seed = t;
+                results.add(pool.submit(new Callable<Integer>()
+                {
+                    public Integer call() throws Exception
+                    {
+                        return mismatches(learner, features, expected, new Random(seed));
+                    }
+                }));
+            }
+            int mismatches = 0;
+            for (Future<Integer> result : results)
+            {
+                mismatches += result.get();
+            }
+            if (mismatches > 0)
+            {
+                return mismatches + " concurrent predictions differ from the single-threaded ones";
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        double[] batch = new double[rows];
+        learner.predictBatch(features, batch);
+        for (int r = 0; r < rows; r++)
+        {
+            if (Double.compare(batch[r], expected[r]) != 0)
+            {
+                return "predictBatch differs from predict at row " + r;
+            }
+        }
+        for (int r = 0; r < rows; r++)
+        {
+            double[] row = features.row(r);
+            for (int c = 0; c < row.length; c++)
+            {
+                if (Double.compare(row[c], rowsBefore[r][c]) != 0)
+                {
+                    return "predict changed row " + r;
+                }
+            }
+        }
+        return "ok (" + threads + " threads x " + ROUNDS + " rounds x " + rows + " rows)";
+    }
+
+    // Predicts every row ROUNDS times, in a random order each round, and counts the
+    // predictions that differ from the expected ones
+    private static int mismatches(SupervisedLearner learner, Matrix features, double[] expected, Random rand) throws Exception
+    {
+        int rows = features.rows();
+        int[] order = new int[rows];
+        for (int r = 0; r < rows; r++)
+        {
+            order[r] = r;
+        }
+        int mismatches = 0;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            for (int i = rows - 1; i > 0; i--)
+            {
+                int j = rand.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+            for (int r : order)
+            {
+                if (Double.compare(predict(learner, features.row(r)), expected[r]) != 0)
+                {
+                    mismatches++;
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    private static double predict(SupervisedLearner learner, double[] features) throws Exception
+    {
+        double[] prediction = new double[1];
+        learner.predict(features, prediction);
+        return prediction[0];
+    }
+}
@@ -0,0 +1,207 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A load generator for ScoringServer. Threads send the rows of an ARFF file to
+ * /predict, each request carrying a few rows and each thread sending its next
+ * request as soon as the last one is answered, and the client reports the
+ * throughput and latency it saw, the accuracy of the predictions against the labels
+ * in the file, and the server's own /stats.
+ *
+ * Given a model file instead of a URL, it starts a ScoringServer for the model on a
+ * free port of the loopback interface first, so a whole run needs nothing else.
+ */
+public class ScoringClient
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage:");
+            System.out.println("ScoringClient [URL | Model_File] [ARFF_File] [Threads] [Requests_Per_Thread] [Rows_Per_Request] [Max_Batch] [Max_Wait_Microseconds]");
+            System.out.println("e.g. ScoringClient http://localhost:8478 iris.arff 16 1000 1");
+            System.out.println("The last two are for the server started when a model file is given.");
+            System.exit(0);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int rowsPerRequest = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int maxBatch = args.length > 5 ? Integer.parseInt(args[5]) : 256;
+        long maxWait = args.length > 6 ? Long.parseLong(args[6]) : 2000;
+
+        ScoringServer server = null;
+        String url = args[0];
+        if (!url.startsWith("http://"))
+        {
+            ScoringServer.useNoDelay();
+            server = new ScoringServer(ModelFile.load(url), maxBatch, maxWait);
+            url = "http://localhost:" + server.start(0);
+            System.out.println("Started a server for " + args[0] + " at " + url + " (batches of up to " + maxBatch + " rows, waiting up to " + maxWait + " microseconds)");
+        }
+        if (url.endsWith("/"))
+        {
+            url = url.substring(0, url.length() - 1);
+        }
+
+        Matrix data = new Matrix();
+        data.load(args[1]);
+        String[] lines = new String[data.rows()];
+        String[] labels = new String[data.rows()];
+        for (int r = 0; r < lines.length; r++)
+        {
+            lines[r] = line(data, r, data.cols() - 1);
+            labels[r] = value(data, r, data.cols() - 1);
+        }
+
+        try
+        {
+            run(url, lines, labels, threads, requests, rowsPerRequest);
+            System.out.println();
+            System.out.println("Server stats:");
+            System.out.print(get(url + "/stats"));
+        }
+        finally
+        {
+            if (server != null)
+            {
+                server.stop();
+            }
+        }
+    }
+
+    private static void run(String url, String[] lines, String[] labels, int threads, int requests, int rowsPerRequest) throws Exception
+    {
+        URL predict = new URL(url + "/predict");
+        Latencies latencies = new Latencies();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        ArrayList<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            results.add(pool.submit(new Callable<Integer>()
+            {
+                public Integer call() throws Exception
+                {
+                    int correct = 0;
+                    int next = thread * requests * rowsPerRequest;
+                    for (int i = 0; i < requests; i++)
+                    {
+                        StringBuilder body = new StringBuilder();
+                        int[] rows = new int[rowsPerRequest];
+                        for (int j = 0; j < rowsPerRequest; j++)
+                        {
+                            rows[j] = next++ % lines.length;
+                            body.append(lines[rows[j]]).append('\n');
+                        }
+                        long sent = System.nanoTime();
+                        String[] predictions = post(predict, body.toString()).split("\n");
+                        latencies.record(System.nanoTime() - sent);
+                        for (int j = 0; j < rowsPerRequest; j++)
+                        {
+                            if (predictions[j].equals(labels[rows[j]]))
+                            {
+                                correct++;
+                            }
+                        }
+                    }
+                    return correct;
+                }
+            }));
+        }
+        long correct = 0;
+        try
+        {
+            for (Future<Integer> result : results)
+            {
+                correct += result.get();
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long total = (long) threads * requests;
+        double[] latency = latencies.percentiles(50, 99, 100);
+        System.out.println(threads + " threads x " + requests + " requests x " + rowsPerRequest + " rows in " + seconds + " seconds");
+        System.out.println("requests per second: " + total / seconds);
+        System.out.println("rows per second: " + total * rowsPerRequest / seconds);
+        System.out.println(String.format("latency (ms): p50 %.3f  p99 %.3f  max %.3f", latency[0], latency[1], latency[2]));
+        System.out.println("Accuracy: " + (double) correct / (total * rowsPerRequest));
+    }
+
+    // Returns the first cols values of the row as an ARFF data line
+    private static String line(Matrix data, int r, int cols)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < cols; c++)
+        {
+            if (c > 0)
+            {
+                sb.append(',');
+            }
+            sb.append(value(data, r, c));
+        }
+        return sb.toString();
+    }
+
+    // Returns the value as it would appear in an ARFF file (and in a prediction)
+    private static String value(Matrix data, int r, int c)
+    {
+        double v = data.get(r, c);
+        if (v == Matrix.MISSING)
+        {
+            return "?";
+        }
+        if (data.valueCount(c) == 0)
+        {
+            return Double.toString(v);
+        }
+        return data.attrValue(c, (int) v);
+    }
+
+    private static String post(URL url, String body) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        OutputStream out = connection.getOutputStream();
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+        out.close();
+        return response(connection);
+    }
+
+    private static String get(String url) throws IOException
+    {
+        return response((HttpURLConnection) new URL(url).openConnection());
+    }
+
+    private static String response(HttpURLConnection connection) throws IOException
+    {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        in.close();
+        if (status != 200)
+        {
+            throw new IOException("HTTP " + status + ": " + body.trim());
+        }
+        return body;
+    }
+}
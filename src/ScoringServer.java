@@ -0,0 +1,391 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the predictions of a trained learner over HTTP on the loopback interface.
+ *
+ *   POST /predict   the body is one or more data lines, as in the @DATA section of
+ *                   an ARFF file, with the feature values only. The response has the
+ *                   prediction for each line, one per line: the name of the value for
+ *                   a nominal label, or the number.
+ *   GET  /stats     request, row and batch counts, throughput, and latency percentiles
+ *
+ * Requests are not predicted one at a time. Handler threads parse their rows and put
+ * them on a queue; a single batching thread takes the first waiting request, keeps
+ * taking requests until it has maxBatch rows or the first request has waited
+ * maxWait, and runs them all through one predictBatch call. Latency is measured from
+ * the arrival of a request to its response being ready, so it includes the wait for
+ * the batch.
+ *
+ * Responses are small and written in pieces, so without TCP_NODELAY most of the
+ * latency is the client's delayed ACK. The JDK's HttpServer only turns it on through
+ * the JVM-wide sun.net.httpserver.nodelay property, which would change every other
+ * HttpServer in the process, so the server leaves it alone; main (and ScoringClient's
+ * main) set it with useNoDelay before creating a server, and a program that embeds
+ * the server can do the same.
+ */
+public class ScoringServer
+{
+    private static final int HANDLER_THREADS = 64;
+
+    private SupervisedLearner m_learner;
+    private Matrix m_labels;            // the attributes of the labels, with no rows
+    private ArffReader m_parser;        // parses data lines of the features
+    private int m_featureCols;
+    private int m_maxBatch;
+    private long m_maxWaitNanos;
+
+    private HttpServer m_server;
+    private ExecutorService m_handlers;
+    private Thread m_batcher;
+    private volatile boolean m_running;
+    private LinkedBlockingQueue<Request> m_queue = new LinkedBlockingQueue<Request>();
+    private Matrix m_batch;             // the rows of the current batch, reused
+
+    private long m_startNanos;
+    private AtomicLong m_requests = new AtomicLong();
+    private AtomicLong m_rows = new AtomicLong();
+    private AtomicLong m_batches = new AtomicLong();
+    private AtomicLong m_errors = new AtomicLong();
+    private Latencies m_latencies = new Latencies();
+
+    /**
+     * The rows of one request, and the predictions once its batch has run.
+     */
+    private static class Request
+    {
+        long m_arrival = System.nanoTime();
+        double[][] m_rows;
+        CompletableFuture<double[]> m_predictions = new CompletableFuture<double[]>();
+
+        Request(double[][] rows)
+        {
+            m_rows = rows;
+        }
+    }
+
+    // Serves the learner, which was trained on features and labels with the attributes
+    // of the specified matrices. A batch is run once it has maxBatch rows or its first
+    // request has waited maxWaitMicros.
+    public ScoringServer(SupervisedLearner learner, Matrix features, Matrix labels, int maxBatch, long maxWaitMicros) throws Exception
+    {
+        if (maxBatch < 1 || maxWaitMicros < 0)
+        {
+            throw new Exception("The batch size must be at least 1 and the wait at least 0");
+        }
+        m_learner = learner;
+        m_labels = labels;
+        m_featureCols = features.cols();
+        m_parser = new ArffReader(features.m_attr_values);
+        m_maxBatch = maxBatch;
+        m_maxWaitNanos = maxWaitMicros * 1000;
+        m_batch = new Matrix(features, 0, 0, 0, m_featureCols);
+        m_batch.setColumnar(false);
+    }
+
+    // Serves a model loaded from a ModelFile
+    public ScoringServer(ModelFile model, int maxBatch, long maxWaitMicros) throws Exception
+    {
+        this(model.learner(), model.features(), model.labels(), maxBatch, maxWaitMicros);
+    }
+
+    // Starts listening on the specified port of the loopback interface (0 picks a free
+    // one) and returns the port
+    public int start(int port) throws IOException
+    {
+        m_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        m_server.createContext("/predict", this::predict);
+        m_server.createContext("/stats", this::stats);
+        m_handlers = Executors.newFixedThreadPool(HANDLER_THREADS);
+        m_server.setExecutor(m_handlers);
+        m_running = true;
+        m_startNanos = System.nanoTime();
+        m_batcher = new Thread(this::runBatches, "ScoringServer batcher");
+        m_batcher.setDaemon(true);
+        m_batcher.start();
+        m_server.start();
+        return m_server.getAddress().getPort();
+    }
+
+    // Stops listening, and fails any requests still waiting for a batch
+    public void stop()
+    {
+        m_running = false;
+        m_server.stop(0);
+        m_batcher.interrupt();
+        try
+        {
+            m_batcher.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        Request request;
+        while ((request = m_queue.poll()) != null)
+        {
+            request.m_predictions.completeExceptionally(new Exception("The server stopped"));
+        }
+        m_handlers.shutdown();
+    }
+
+    // Returns the counters, throughput and latency percentiles, one per line
+    public String stats()
+    {
+        double seconds = (System.nanoTime() - m_startNanos) / 1e9;
+        long requests = m_requests.get();
+        long rows = m_rows.get();
+        long batches = m_batches.get();
+        double[] latency = m_latencies.percentiles(50, 99, 100);
+        StringBuilder sb = new StringBuilder();
+        sb.append("requests: ").append(requests).append('\n');
+        sb.append("rows: ").append(rows).append('\n');
+        sb.append("errors: ").append(m_errors.get()).append('\n');
+        sb.append("batches: ").append(batches).append('\n');
+        sb.append("mean rows per batch: ").append(batches == 0 ? 0 : (double) rows / batches).append('\n');
+        sb.append("requests per second: ").append(requests / seconds).append('\n');
+        sb.append("rows per second: ").append(rows / seconds).append('\n');
+        sb.append(String.format("latency (ms): p50 %.3f  p99 %.3f  max %.3f%n", latency[0], latency[1], latency[2]));
+        return sb.toString();
+    }
+
+    private void predict(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            if (!exchange.getRequestMethod().equals("POST"))
+            {
+                respond(exchange, 405, "POST data lines to /predict\n");
+                return;
+            }
+            double[][] rows;
+            try
+            {
+                rows = parse(exchange.getRequestBody().readAllBytes());
+            }
+            catch (Exception e)
+            {
+                m_errors.incrementAndGet();
+                respond(exchange, 400, e.getMessage() + "\n");
+                return;
+            }
+            Request request = new Request(rows);
+            m_queue.add(request);
+            double[] predictions;
+            try
+            {
+                predictions = request.m_predictions.get();
+            }
+            catch (ExecutionException e)
+            {
+                m_errors.incrementAndGet();
+                respond(exchange, 500, e.getCause() + "\n");
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (double prediction : predictions)
+            {
+                if (m_labels.valueCount(0) == 0)
+                {
+                    sb.append(prediction);
+                }
+                else
+                {
+                    sb.append(m_labels.attrValue(0, (int) prediction));
+                }
+                sb.append('\n');
+            }
+            m_latencies.record(System.nanoTime() - request.m_arrival);
+            m_requests.incrementAndGet();
+            m_rows.addAndGet(rows.length);
+            respond(exchange, 200, sb.toString());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "The server stopped\n");
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException
+    {
+        respond(exchange, 200, stats());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    // Parses the data lines of a request body, skipping blank lines. A line with too
+    // few values is an error rather than being scored with zeros for the rest.
+    private double[][] parse(byte[] body) throws Exception
+    {
+        ArrayList<double[]> rows = new ArrayList<double[]>();
+        int start = 0;
+        while (start < body.length)
+        {
+            int end = start;
+            while (end < body.length && body[end] != '\n')
+            {
+                end++;
+            }
+            int next = end + 1;
+            while (start < end && body[start] <= ' ')
+            {
+                start++;
+            }
+            while (end > start && body[end - 1] <= ' ')
+            {
+                end--;
+            }
+            if (start < end)
+            {
+                double[] row = new double[m_featureCols];
+                int values = m_parser.parseRow(body, start, end, row);
+                if (values != m_featureCols)
+                {
+                    throw new Exception("Expected " + m_featureCols + " values on line " + (rows.size() + 1) + ", found " + values);
+                }
+                rows.add(row);
+            }
+            start = next;
+        }
+        if (rows.isEmpty())
+        {
+            throw new Exception("No data lines");
+        }
+        return rows.toArray(new double[rows.size()][]);
+    }
+
+    // The batching thread: gathers waiting requests into batches and predicts them
+    private void runBatches()
+    {
+        ArrayList<Request> batch = new ArrayList<Request>();
+        while (m_running)
+        {
+            try
+            {
+                Request first = m_queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    continue;
+                }
+                batch.add(first);
+                int rows = first.m_rows.length;
+                long deadline = first.m_arrival + m_maxWaitNanos;
+                while (rows < m_maxBatch)
+                {
+                    long wait = deadline - System.nanoTime();
+                    Request next = wait > 0 ? m_queue.poll(wait, TimeUnit.NANOSECONDS) : m_queue.poll();
+                    if (next == null)
+                    {
+                        break;
+                    }
+                    batch.add(next);
+                    rows += next.m_rows.length;
+                }
+                runBatch(batch, rows);
+            }
+            catch (InterruptedException e)
+            {
+                for (Request request : batch)
+                {
+                    request.m_predictions.completeExceptionally(e);
+                }
+                return;
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+    }
+
+    private void runBatch(ArrayList<Request> batch, int rows)
+    {
+        double[] predictions = new double[rows];
+        try
+        {
+            m_batch.clearRows();
+            for (Request request : batch)
+            {
+                for (double[] row : request.m_rows)
+                {
+                    m_batch.addRow(row);
+                }
+            }
+            m_learner.predictBatch(m_batch, predictions);
+        }
+        catch (Exception e)
+        {
+            for (Request request : batch)
+            {
+                request.m_predictions.completeExceptionally(e);
+            }
+            return;
+        }
+        m_batches.incrementAndGet();
+        int offset = 0;
+        for (Request request : batch)
+        {
+            double[] mine = new double[request.m_rows.length];
+            System.arraycopy(predictions, offset, mine, 0, mine.length);
+            offset += mine.length;
+            request.m_predictions.complete(mine);
+        }
+    }
+
+    // Sets the JVM-wide property that turns on TCP_NODELAY for every HttpServer created
+    // after it, unless it has been set already (e.g. with -D)
+    static void useNoDelay()
+    {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+        {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage:");
+            System.out.println("ScoringServer [Model_File] [Port] [Max_Batch] [Max_Wait_Microseconds]");
+            System.exit(0);
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8478;
+        int maxBatch = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        long maxWait = args.length > 3 ? Long.parseLong(args[3]) : 2000;
+        ModelFile model = ModelFile.load(args[0]);
+        useNoDelay();
+        ScoringServer server = new ScoringServer(model, maxBatch, maxWait);
+        port = server.start(port);
+        System.out.println("Serving " + model.learner().getClass().getName() + " from " + args[0] + " on http://localhost:" + port + "/predict");
+        System.out.println("Batches of up to " + maxBatch + " rows, waiting up to " + maxWait + " microseconds");
+    }
+}
@@ -0,0 +1,188 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.util.Arrays;
+
+/**
+ * One instance stored as its non-zero values: parallel arrays of column indexes,
+ * in increasing order, and the values in those columns. Every other column is 0.
+ * MISSING is not zero, so it is stored like any other value.
+ */
+class SparseRow
+{
+    private int[] m_indices;
+    private double[] m_values;
+    private int m_size;
+
+    // Creates a row of all zeros
+    SparseRow()
+    {
+        this(4);
+    }
+
+    private SparseRow(int capacity)
+    {
+        m_indices = new int[capacity];
+        m_values = new double[capacity];
+    }
+
+    // Returns the non-zero values of a dense row
+    static SparseRow of(double[] row)
+    {
+        int count = 0;
+        for (int i = 0; i < row.length; i++)
+        {
+            if (row[i] != 0)
+            {
+                count++;
+            }
+        }
+        SparseRow sparse = new SparseRow(count);
+        for (int i = 0; i < row.length; i++)
+        {
+            if (row[i] != 0)
+            {
+                sparse.m_indices[sparse.m_size] = i;
+                sparse.m_values[sparse.m_size] = row[i];
+                sparse.m_size++;
+            }
+        }
+        return sparse;
+    }
+
+    // Returns the number of non-zero values
+    int size()
+    {
+        return m_size;
+    }
+
+    // Returns the column of the k-th non-zero value
+    int index(int k)
+    {
+        return m_indices[k];
+    }
+
+    // Returns the k-th non-zero value
+    double value(int k)
+    {
+        return m_values[k];
+    }
+
+    // Returns the value in the specified column
+    double get(int col)
+    {
+        int k = Arrays.binarySearch(m_indices, 0, m_size, col);
+        return k < 0 ? 0 : m_values[k];
+    }
+
+    // Sets the value in the specified column. Setting it to 0 removes it.
+    void set(int col, double v)
+    {
+        int k = Arrays.binarySearch(m_indices, 0, m_size, col);
+        if (k >= 0)
+        {
+            if (v != 0)
+            {
+                m_values[k] = v;
+                return;
+            }
+            System.arraycopy(m_indices, k + 1, m_indices, k, m_size - k - 1);
+            System.arraycopy(m_values, k + 1, m_values, k, m_size - k - 1);
+            m_size--;
+            return;
+        }
+        if (v != 0)
+        {
+            insert(-k - 1, col, v);
+        }
+    }
+
+    // Sets the value in the specified column, which is usually past the last
+    // non-zero value, as when the row is read in column order
+    void add(int col, double v)
+    {
+        if (m_size > 0 && col <= m_indices[m_size - 1])
+        {
+            set(col, v);
+        }
+        else if (v != 0)
+        {
+            insert(m_size, col, v);
+        }
+    }
+
+    private void insert(int k, int col, double v)
+    {
+        if (m_size == m_indices.length)
+        {
+            int capacity = Math.max(m_size * 2, 4);
+            m_indices = Arrays.copyOf(m_indices, capacity);
+            m_values = Arrays.copyOf(m_values, capacity);
+        }
+        System.arraycopy(m_indices, k, m_indices, k + 1, m_size - k);
+        System.arraycopy(m_values, k, m_values, k + 1, m_size - k);
+        m_indices[k] = col;
+        m_values[k] = v;
+        m_size++;
+    }
+
+    // Copies the non-zero values in columns [start, start + count) into the arrays,
+    // numbering the columns from start, and returns how many there are
+    int copyRange(int start, int count, int[] indices, double[] values)
+    {
+        int k = first(start);
+        int end = start + count;
+        int n = 0;
+        while (k < m_size && m_indices[k] < end)
+        {
+            indices[n] = m_indices[k] - start;
+            values[n] = m_values[k];
+            n++;
+            k++;
+        }
+        return n;
+    }
+
+    // Writes columns [start, start + row.length) into the dense row
+    void toDense(int start, double[] row)
+    {
+        Arrays.fill(row, 0.0);
+        int end = start + row.length;
+        for (int k = first(start); k < m_size && m_indices[k] < end; k++)
+        {
+            row[m_indices[k] - start] = m_values[k];
+        }
+    }
+
+    // Returns columns [start, start + count) as a row of their own
+    SparseRow slice(int start, int count)
+    {
+        int k = first(start);
+        int end = k;
+        while (end < m_size && m_indices[end] < start + count)
+        {
+            end++;
+        }
+        SparseRow slice = new SparseRow(end - k);
+        for (; k < end; k++)
+        {
+            slice.m_indices[slice.m_size] = m_indices[k] - start;
+            slice.m_values[slice.m_size] = m_values[k];
+            slice.m_size++;
+        }
+        return slice;
+    }
+
+    // Returns the position of the first non-zero value at or after the column
+    private int first(int col)
+    {
+        if (col == 0)
+        {
+            return 0;
+        }
+        int k = Arrays.binarySearch(m_indices, 0, m_size, col);
+        return k < 0 ? -k - 1 : k;
+    }
+}
@@ -0,0 +1,23 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+/**
+ * A learner that can be trained from a DatasetStream, a batch of rows at a time,
+ * without ever holding the whole dataset. DatasetStream.train calls startTraining
+ * once, then trainBatch for each batch of a pass over the file, then endPass, and
+ * keeps making passes for as long as endPass asks for another one.
+ */
+public interface StreamLearner
+{
+    // Prepares to train on data with the attributes of the given matrices (which may have no rows)
+    void startTraining(Matrix features, Matrix labels) throws Exception;
+
+    // Trains on the next batch of the current pass. The matrices are reused for the
+    // next batch, so they must not be kept.
+    void trainBatch(Matrix features, Matrix labels) throws Exception;
+
+    // Finishes the current pass. Returns true if another pass is wanted.
+    boolean endPass() throws Exception;
+}
@@ -5,6 +5,8 @@
 
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.io.File;
 
 public abstract class SupervisedLearner {
@@ -13,15 +15,151 @@ public abstract class SupervisedLearner {
 	// into a feature matrix and a label matrix.
 	public abstract void train(Matrix features, Matrix labels) throws Exception;
 
+	// Continues training the current model on new rows only, as when fresh data
+	// arrives for a model that was trained (or loaded) earlier, so the cost depends
+	// on the new rows and not on all the rows seen before. An untrained learner
+	// starts a new model. Learners that can be updated this way override it.
+	public void partialFit(Matrix features, Matrix labels) throws Exception
+	{
+		throw(new Exception(getClass().getName() + " cannot be trained incrementally"));
+	}
+
 	// A feature vector goes in. A label vector comes out. (Some supervised
 	// learning algorithms only support one-dimensional label vectors. Some
 	// support multi-dimensional label vectors.)
+	//
+	// Once train has returned, the model is read-only: predict must not change the
+	// learner or the features array, must take no locks, and must give the same
+	// labels for the same features however many threads call it at once and in
+	// whatever order. A learner that needs randomness at prediction time seeds it
+	// from the features. One trained learner can then be shared by many threads,
+	// as long as none of them trains it again. PredictStress checks this.
 	public abstract void predict(double[] features, double[] labels) throws Exception;
 
+	// Predicts the label of every row of the features into out, which has an element
+	// per row. The rows are split into ranges that are predicted on the common
+	// fork-join pool, so predict (or predictRange) must be safe to call from several
+	// threads at once. Only one-dimensional labels are supported.
+	public void predictBatch(Matrix features, double[] out) throws Exception
+	{
+		predictBatch(features, 0, features.rows(), out);
+	}
+
+	// Predicts the labels of rows [start, end) of the features into the same
+	// elements of out
+	public void predictBatch(Matrix features, int start, int end, double[] out) throws Exception
+	{
+		if(start < 0 || end > features.rows() || start > end || out.length < end)
+			throw(new Exception("out of range"));
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		int grain = Math.max(MIN_BATCH_RANGE, (end - start) / (4 * parallelism));
+		if(parallelism < 2 || end - start <= grain)
+		{
+			predictRange(features, start, end, out);
+			return;
+		}
+		try
+		{
+			ForkJoinPool.commonPool().invoke(new PredictTask(features, start, end, out, grain));
+		}
+		catch(PredictFailure e)
+		{
+			Throwable cause = e;
+			while(cause instanceof PredictFailure)
+				cause = cause.getCause();
+			if(cause instanceof Exception)
+				throw (Exception)cause;
+			throw e;
+		}
+	}
+
+	// Predicts rows [start, end) of the features one at a time, on the calling
+	// thread. Learners that can score a block of rows faster than one row at a time
+	// override this, and still have the blocks spread across threads by predictBatch.
+	protected void predictRange(Matrix features, int start, int end, double[] out) throws Exception
+	{
+		double[] prediction = new double[1];
+		double[] row = new double[features.cols()];
+		for(int i = start; i < end; i++)
+		{
+			prediction[0] = 0.0;
+			predict(features.row(i, row), prediction);
+			out[i] = prediction[0];
+		}
+	}
+
+	// the fewest rows predictBatch hands to one task
+	private static final int MIN_BATCH_RANGE = 256;
+
+	// Splits a range of rows in halves until it is at most grain rows
+	private class PredictTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Matrix features;
+		private final int start;
+		private final int end;
+		private final double[] out;
+		private final int grain;
+
+		PredictTask(Matrix features, int start, int end, double[] out, int grain)
+		{
+			this.features = features;
+			this.start = start;
+			this.end = end;
+			this.out = out;
+			this.grain = grain;
+		}
+
+		protected void compute()
+		{
+			if(end - start <= grain)
+			{
+				try
+				{
+					predictRange(features, start, end, out);
+				}
+				catch(Exception e)
+				{
+					throw new PredictFailure(e);
+				}
+				return;
+			}
+			int middle = (start + end) >>> 1;
+			invokeAll(new PredictTask(features, start, middle, out, grain), new PredictTask(features, middle, end, out, grain));
+		}
+	}
+
+	// Carries an exception thrown by predict out of the fork-join pool
+	private static class PredictFailure extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		PredictFailure(Exception cause)
+		{
+			super(cause);
+		}
+	}
+
+	// Writes what predict needs of the trained model, for ModelFile.save. Learners
+	// that can be saved override this and readModel.
+	protected void writeModel(ModelFile.Output out) throws Exception
+	{
+		throw(new Exception(getClass().getName() + " cannot be saved"));
+	}
+
+	// Reads back what writeModel wrote, in the same order, into an untrained learner
+	protected void readModel(ModelFile.Input in) throws Exception
+	{
+		throw(new Exception(getClass().getName() + " cannot be loaded"));
+	}
+
 	// The model must be trained before you call this method. If the label is nominal,
 	// it returns the predictive accuracy. If the label is continuous, it returns
 	// the root mean squared error (RMSE). If confusion is non-NULL, and the
 	// output label is nominal, then confusion will hold stats for a confusion matrix.
+	// The rows are predicted in parallel with predictBatch, and the results are
+	// tallied in row order, so they are exactly those of predicting one row at a time.
 	public double measureAccuracy(Matrix features, Matrix labels, Matrix confusion) throws Exception
 	{
 		if(features.rows() != labels.rows())
@@ -35,45 +173,103 @@ public abstract class SupervisedLearner {
 		if(labelValues == 0) // If the label is continuous...
 		{
 			// The label is continuous, so measure root mean squared error
-			double[] pred = new double[1];
-			double sse = 0.0;
-			for(int i = 0; i < features.rows(); i++)
-			{
-				double[] feat = features.row(i);
-				double[] targ = labels.row(i);
-				pred[0] = 0.0; // make sure the prediction is not biassed by a previous prediction
-				predict(feat, pred);
-				double delta = targ[0] - pred[0];
-				sse += (delta * delta);
-			}
+			double sse = sumSquaredError(features, labels, 0.0);
 			return Math.sqrt(sse / features.rows());
 		}
 		else
 		{
 			// The label is nominal, so measure predictive accuracy
-			if(confusion != null)
-			{
-				confusion.setSize(labelValues, labelValues);
-				for(int i = 0; i < labelValues; i++)
-					confusion.setAttrName(i, labels.attrValue(0, i));
-			}
-			int correctCount = 0;
-			double[] prediction = new double[1];
-			for(int i = 0; i < features.rows(); i++)
+			int[][] counts = confusion == null ? null : new int[labelValues][labelValues];
+			int correctCount = countCorrect(features, labels, counts);
+			setConfusion(labels, counts, confusion);
+			return (double)correctCount / features.rows();
+		}
+	}
+
+	// Measures accuracy the same way over all the batches of a stream, so the
+	// test set does not have to fit in memory
+	public double measureAccuracy(DatasetStream stream, Matrix confusion) throws Exception
+	{
+		Matrix labels = stream.labels();
+		if(labels.cols() != 1)
+			throw(new Exception("Sorry, this method currently only supports one-dimensional labels"));
+
+		int labelValues = labels.valueCount(0);
+		int[][] counts = confusion == null || labelValues == 0 ? null : new int[labelValues][labelValues];
+		double sse = 0.0;
+		int correctCount = 0;
+		int rows = 0;
+		stream.rewind();
+		while(stream.next())
+		{
+			if(labelValues == 0)
+				sse = sumSquaredError(stream.features(), stream.labels(), sse);
+			else
+				correctCount += countCorrect(stream.features(), stream.labels(), counts);
+			rows += stream.features().rows();
+		}
+		if(rows == 0)
+			throw(new Exception("Expected at least one row"));
+		if(labelValues == 0)
+			return Math.sqrt(sse / rows);
+		setConfusion(labels, counts, confusion);
+		return (double)correctCount / rows;
+	}
+
+	// Makes confusion a matrix of the counts, one row per actual label value and one
+	// column per predicted value
+	private void setConfusion(Matrix labels, int[][] counts, Matrix confusion)
+	{
+		if(confusion != null)
+		{
+			int labelValues = labels.valueCount(0);
+			confusion.setSize(labelValues, labelValues);
+			for(int i = 0; i < labelValues; i++)
 			{
-				double[] feat = features.row(i);
-				int targ = (int)labels.get(i, 0);
-				if(targ >= labelValues)
-					throw new Exception("The label is out of range");
-				predict(feat, prediction);
-				int pred = (int)prediction[0];
-				if(confusion != null)
-					confusion.set(targ, pred, confusion.get(targ, pred) + 1);
-				if(pred == targ)
-					correctCount++;
+				confusion.setAttrName(i, labels.attrValue(0, i));
+				for(int j = 0; j < labelValues; j++)
+					confusion.set(i, j, counts[i][j]);
 			}
-			return (double)correctCount / features.rows();
 		}
 	}
 
+	// Adds the squared error of each row's prediction to sse. The errors are added
+	// in row order, as a sum split across threads would round differently.
+	private double sumSquaredError(Matrix features, Matrix labels, double sse) throws Exception
+	{
+		double[] pred = new double[features.rows()];
+		predictBatch(features, pred);
+		for(int i = 0; i < features.rows(); i++)
+		{
+			double delta = labels.get(i, 0) - pred[i];
+			sse += (delta * delta);
+		}
+		return sse;
+	}
+
+	// Returns the number of rows predicted correctly, adding them all to the
+	// confusion counts if they are not null
+	private int countCorrect(Matrix features, Matrix labels, int[][] confusion) throws Exception
+	{
+		int labelValues = labels.valueCount(0);
+		for(int i = 0; i < features.rows(); i++)
+		{
+			if((int)labels.get(i, 0) >= labelValues)
+				throw new Exception("The label is out of range");
+		}
+		double[] predictions = new double[features.rows()];
+		predictBatch(features, predictions);
+		int correctCount = 0;
+		for(int i = 0; i < features.rows(); i++)
+		{
+			int targ = (int)labels.get(i, 0);
+			int pred = (int)predictions[i];
+			if(confusion != null)
+				confusion[targ][pred]++;
+			if(pred == targ)
+				correctCount++;
+		}
+		return correctCount;
+	}
+
 }
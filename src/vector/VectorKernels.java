@@ -0,0 +1,95 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels written with the incubating Vector API. Each vector element is one of
+ * the LANES lanes of Kernels, and the lanes are added in the same order at the
+ * end, so the results are bit for bit the same as the scalar kernels. This file
+ * needs --add-modules jdk.incubator.vector to compile and to run (see Kernels);
+ * without it the learners use the scalar kernels.
+ */
+class VectorKernels extends Kernels
+{
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_256;
+
+    String name()
+    {
+        return "vector";
+    }
+
+    double dotProduct(double[] a, double[] b, int offset, int n)
+    {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i + LANES <= n; i += LANES)
+        {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, offset + i);
+            acc = acc.add(va.mul(vb));
+        }
+        double sum = sumLanes(acc);
+        for (; i < n; i++)
+        {
+            sum += a[i] * b[offset + i];
+        }
+        return sum;
+    }
+
+    double sumSquaredDifferences(double[] a, double[] b, int n)
+    {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i + LANES <= n; i += LANES)
+        {
+            DoubleVector d = DoubleVector.fromArray(SPECIES, a, i).sub(DoubleVector.fromArray(SPECIES, b, i));
+            acc = acc.add(d.mul(d));
+        }
+        double sum = sumLanes(acc);
+        for (; i < n; i++)
+        {
+            double d = a[i] - b[i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    double sumMixedDifferences(double[] a, double[] b, boolean[] nominal, int n)
+    {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        DoubleVector zeros = DoubleVector.zero(SPECIES);
+        DoubleVector ones = DoubleVector.broadcast(SPECIES, 1);
+        int i = 0;
+        for (; i + LANES <= n; i += LANES)
+        {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, i);
+            DoubleVector d = va.sub(vb);
+            VectorMask<Double> isNominal = VectorMask.fromArray(SPECIES, nominal, i);
+            VectorMask<Double> missing = va.compare(VectorOperators.EQ, Matrix.MISSING).or(vb.compare(VectorOperators.EQ, Matrix.MISSING));
+            DoubleVector term = d.mul(d)
+                .blend(zeros, isNominal)
+                .blend(ones, isNominal.and(va.compare(VectorOperators.NE, vb)))
+                .blend(ones, missing);
+            acc = acc.add(term);
+        }
+        double sum = sumLanes(acc);
+        for (; i < n; i++)
+        {
+            sum += mixedDifference(a[i], b[i], nominal[i]);
+        }
+        return sum;
+    }
+
+    // Adds the lanes in order, as the scalar kernels do
+    private static double sumLanes(DoubleVector acc)
+    {
+        return acc.lane(0) + acc.lane(1) + acc.lane(2) + acc.lane(3);
+    }
+}